@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Move evaluation: a full game through TTT.set for several sizes, and
+* the bitboard and running counters against the original 3x3 rescan
+* of char[][] after every move.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoardBenchmark {
+  // 3x3 draw, so every move is evaluated and none ends the game early
+  private static final int [][] DRAW = {
+    {0, 0}, {0, 1}, {0, 2}, {1, 1}, {1, 0}, {1, 2}, {2, 1}, {2, 0}, {2, 2}
+  };
+
+  @Param({"3", "5", "8"})
+  int size;
+
+  TTT ttt;
+  TTTBitBoard bits3;
+  char [][] board3 = new char[3][3];
+
+  @Setup
+  public void setup() {
+    ttt = new TTT(size, size);
+    bits3 = new TTTBitBoard(3, 3);
+  }
+
+  /** Row-major fill of the board until it is done. */
+  @Benchmark
+  public boolean setAndEvaluate() {
+    ttt.reset();
+    ttt.setPlayer1("u1");
+    ttt.setPlayer2("u2");
+    for(int i = 0; i < size * size && !ttt.getIsDone(); i++) {
+      ttt.set(ttt.getCurrentPlayer(), i / size, i % size);
+    }
+    return ttt.getIsDone();
+  }
+
+  @Benchmark
+  public boolean legacyScan3x3() {
+    for(int i = 0; i < 3; i++) {
+      for(int j = 0; j < 3; j++) {
+        board3[i][j] = ' ';
+      }
+    }
+    boolean done = false;
+    for(int m = 0; m < DRAW.length && !done; m++) {
+      board3[DRAW[m][0]][DRAW[m][1]] = (m % 2 == 0) ? 'X' : 'O';
+      done = legacyEvaluate(board3);
+    }
+    return done;
+  }
+
+  @Benchmark
+  public boolean bitboard3x3() {
+    bits3.reset();
+    boolean done = false;
+    for(int m = 0; m < DRAW.length && !done; m++) {
+      int player = m % 2;
+      bits3.set(player, DRAW[m][0], DRAW[m][1]);
+      done = bits3.isWin(player, DRAW[m][0], DRAW[m][1]) || bits3.isFull();
+    }
+    return done;
+  }
+
+  /** The evaluateBoard scan TTT used before the bitboard. */
+  static boolean legacyEvaluate(char [][] board) {
+    char c;
+    for(int i = 0; i < 3; i++) {
+      c = board[i][0];
+      if(c != ' ' && c == board[i][1] && c == board[i][2]) {
+        return true;
+      }
+    }
+    for(int i = 0; i < 3; i++) {
+      c = board[0][i];
+      if(c != ' ' && c == board[1][i] && c == board[2][i]) {
+        return true;
+      }
+    }
+    c = board[0][0];
+    if(c != ' ' && c == board[1][1] && c == board[2][2]) {
+      return true;
+    }
+    c = board[2][0];
+    if(c != ' ' && c == board[1][1] && c == board[0][2]) {
+      return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* TTTBot: a whole medium level game of the bot against itself, with a
+* fresh transposition table per game and with one table kept across
+* games the way Processor's pool keeps it. Medium stops at 3 plies, so
+* the time budget never cuts a search short and runs are comparable.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BotBenchmark {
+  @Param({"3", "5", "8"})
+  int size;
+
+  TTTBot reused;
+
+  @Setup
+  public void setup() {
+    reused = new TTTBot(TTTConfig.botTableBits);
+  }
+
+  @Benchmark
+  public int gameFreshTable() {
+    return play(new TTTBot(TTTConfig.botTableBits));
+  }
+
+  @Benchmark
+  public int gameReusedTable() {
+    return play(reused);
+  }
+
+  private int play(TTTBot bot) {
+    TTT ttt = new TTT(size, Math.min(size, TTTConfig.botWinLength));
+    ttt.setPlayer1("u1");
+    ttt.setPlayer2("u2");
+    while(!ttt.getIsDone()) {
+      int cell = bot.move(ttt, TTTBot.Level.MEDIUM, 60000);
+      ttt.set(ttt.getCurrentPlayer(), cell / size, cell % size);
+    }
+    return ttt.getMoves().length;
+  }
+}
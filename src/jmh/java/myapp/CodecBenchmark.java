@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* TTTCodec against Java serialization of the same board state, a
+* finished 3x3 game. The compact codec writes into one reused buffer;
+* serialization gets the fields TTT keeps, as a Serializable holder.
+* The encoded sizes are in the README.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+  /** The state TTT holds, the way plain serialization would see it. */
+  static class Fields implements Serializable {
+    private static final long serialVersionUID = 1L;
+    char [][] board;
+    String player1;
+    String player2;
+    String playerInvitee;
+    String winner;
+    boolean isPlayer1;
+    boolean isDone;
+    boolean isReady;
+    int numPopulated;
+    long timeLastMS;
+  }
+
+  TTT board;
+  Fields fields;
+  ByteBuffer buf = ByteBuffer.allocate(1024);
+  byte [] compact;
+  byte [] serialized;
+
+  @Setup
+  public void setup() throws IOException {
+    board = new TTT();
+    board.setPlayer1("U024BE7LH");
+    board.setPlayer2("U0G9QF9C6");
+    board.setIsReady();
+    board.set(board.getCurrentPlayer(), 0, 0);
+    board.set(board.getCurrentPlayer(), 1, 1);
+    board.set(board.getCurrentPlayer(), 0, 1);
+    board.set(board.getCurrentPlayer(), 2, 2);
+    board.set(board.getCurrentPlayer(), 0, 2);
+
+    fields = new Fields();
+    fields.board = board.board;
+    fields.player1 = board.getPlayer1();
+    fields.player2 = board.getPlayer2();
+    fields.winner = board.getWinner();
+    fields.isPlayer1 = board.isPlayer1();
+    fields.isDone = board.getIsDone();
+    fields.numPopulated = board.numPopulated;
+    fields.timeLastMS = board.getTimeLastMS();
+
+    compact = TTTCodec.encodeBoard(board);
+    serialized = serialize();
+  }
+
+  @Benchmark
+  public ByteBuffer encodeCodec() {
+    buf.clear();
+    TTTCodec.writeBoard(buf, board);
+    return buf;
+  }
+
+  @Benchmark
+  public TTT decodeCodec() throws IOException {
+    return TTTCodec.readBoard(ByteBuffer.wrap(compact));
+  }
+
+  @Benchmark
+  public byte [] encodeSerialization() throws IOException {
+    return serialize();
+  }
+
+  @Benchmark
+  public Object decodeSerialization() throws IOException, ClassNotFoundException {
+    try(ObjectInputStream in = new ObjectInputStream(
+      new ByteArrayInputStream(serialized)))
+    {
+      return in.readObject();
+    }
+  }
+
+  private byte [] serialize() throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+    try(ObjectOutputStream out = new ObjectOutputStream(bos)) {
+      out.writeObject(fields);
+    }
+    return bos.toByteArray();
+  }
+}
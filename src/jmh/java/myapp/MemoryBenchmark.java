@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Memory under contention: every thread sends status commands through
+* one shared Processor, either each to its own channel or all to the
+* same one. Compare -t 1 with -t set to the core count: throughput for
+* distinct channels should scale with cores and flatten for a shared one.
+*
+* Each status carries a fresh trigger_id, as in ProcessBenchmark, so the
+* numbers include TTTDedup's bookkeeping, which all threads share.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MemoryBenchmark {
+  @Param({"distinct", "shared"})
+  String channels;
+
+  Processor processor;
+  final AtomicInteger nextThread = new AtomicInteger();
+
+  @Setup
+  public void setup() {
+    processor = new Processor(false);
+  }
+
+  @TearDown
+  public void tearDown() {
+    processor.shutdown();
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    Map<String, String> start1;
+    Map<String, String> start2;
+    Map<String, String> status;
+    String thread;
+    long trigger = 0;
+
+    @Setup
+    public void setup(MemoryBenchmark bench) {
+      thread = "t" + bench.nextThread.getAndIncrement() + ".";
+      String channel = "shared".equals(bench.channels) ? "c" : "c" + thread;
+      start1 = ProcessBenchmark.request("u1", channel, "start");
+      start2 = ProcessBenchmark.request("u2", channel, "start");
+      status = ProcessBenchmark.request("u3", channel, "status");
+      bench.processor.process(start1);
+      bench.processor.process(start2);
+    }
+  }
+
+  @Benchmark
+  public TTTResponse status(ThreadState state) {
+    state.status.put("trigger_id", state.thread + (++state.trigger));
+    return processor.process(state.status);
+  }
+
+  @Benchmark
+  public TTT getBoardLocked(ThreadState state) {
+    Memory memory = processor.getMemory();
+    String channel = state.status.get("channel_name");
+    memory.getLock(channel).lock();
+    try {
+      return memory.getBoard(channel);
+    } finally {
+      memory.getLock(channel).unlock();
+    }
+  }
+}
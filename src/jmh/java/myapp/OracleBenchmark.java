@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+* TTTOracle: how long solving every 3x3 position takes, and what a hint
+* costs once the table is built, for a position in each orientation so
+* every symmetry is exercised.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OracleBenchmark {
+  TTTOracle oracle;
+  TTT board;
+  int [] states;
+
+  @Setup
+  public void setup() {
+    oracle = TTTOracle.get();
+    board = new TTT();
+    board.setPlayer1("u1");
+    board.setPlayer2("u2");
+    board.set("u1", 0, 0);
+    board.set("u2", 0, 1);
+    board.set("u1", 1, 1);
+    // the same position under each symmetry of the square
+    int [][] corners = {{0, 1, 4}, {2, 5, 4}, {8, 7, 4}, {6, 3, 4},
+      {0, 3, 4}, {2, 1, 4}, {8, 5, 4}, {6, 7, 4}};
+    states = new int[corners.length];
+    for(int i = 0; i < corners.length; i++) {
+      int state = 0;
+      for(int cell: corners[i]) {
+        state = TTTOracle.play(state, cell);
+      }
+      states[i] = state;
+    }
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public TTTOracle build() {
+    return TTTOracle.build();
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public int hint() {
+    return oracle.lookup(TTTOracle.encode(board));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(8)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void lookupAllSymmetries(Blackhole bh) {
+    for(int state: states) {
+      bh.consume(oracle.lookup(state));
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Processor.createCommand against the String.split parser it replaced.
+* Run with -prof gc and compare gc.alloc.rate.norm.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+  @Param({"put 1 2", "start someone", "status"})
+  String text;
+
+  Processor processor;
+  Map<String, String> map;
+
+  @Setup
+  public void setup() {
+    processor = new Processor(false);
+    map = new HashMap<>();
+    map.put("command", "/ttt");
+    map.put("user_name", "u1");
+    map.put("channel_name", "c1");
+    map.put("text", text);
+  }
+
+  @TearDown
+  public void tearDown() {
+    processor.shutdown();
+  }
+
+  @Benchmark
+  public Command createCommand() {
+    return processor.createCommand(map);
+  }
+
+  @Benchmark
+  public Object legacySplit() {
+    String [] sary = map.get("text").split("\\s+");
+    if(CMD.PUT.getVerb().equals(sary[0]) && sary.length == 3) {
+      try {
+        return new Coord(Integer.parseInt(sary[1]), Integer.parseInt(sary[2]));
+      } catch(NumberFormatException e) {
+        return null;
+      }
+    }
+    return sary;
+  }
+}
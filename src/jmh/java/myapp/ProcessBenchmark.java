@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Processor.process end to end over a full game: two starts and seven
+* moves ending in a win for u1, then a status. One op is the whole
+* script.
+*
+* Each request carries a fresh trigger_id, as Slack's do, so TTTDedup
+* keeps every response and trims the oldest once at capacity. That
+* bookkeeping is part of the request path and is included here.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessBenchmark {
+  private static final String [][] SCRIPT = {
+    {"u1", "start"}, {"u2", "start"},
+    {"u1", "put 0 0"}, {"u2", "put 1 1"}, {"u1", "put 0 1"},
+    {"u2", "put 2 2"}, {"u1", "put 1 0"}, {"u2", "put 2 0"},
+    {"u1", "put 0 2"}, {"u3", "status"}
+  };
+
+  @Param({"false", "true"})
+  boolean useMailbox;
+
+  Processor processor;
+  Map<String, String> [] requests;
+  long trigger = 0;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setup() {
+    processor = new Processor(useMailbox);
+    requests = new Map[SCRIPT.length];
+    for(int i = 0; i < SCRIPT.length; i++) {
+      requests[i] = request(SCRIPT[i][0], "c1", SCRIPT[i][1]);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    processor.shutdown();
+  }
+
+  @Benchmark
+  public TTTResponse fullGame() {
+    TTTResponse response = null;
+    for(Map<String, String> request: requests) {
+      request.put("trigger_id", Long.toString(++trigger));
+      response = processor.process(request);
+    }
+    return response;
+  }
+
+  static Map<String, String> request(String user, String channel, String text) {
+    Map<String, String> map = new HashMap<>();
+    map.put("command", "/ttt");
+    map.put("user_name", user);
+    map.put("user_id", user + "_id");
+    map.put("channel_name", channel);
+    map.put("channel_id", channel + "_id");
+    map.put("text", text);
+    return map;
+  }
+}
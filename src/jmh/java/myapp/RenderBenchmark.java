@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* TTT.getBoardString: repeated renders of an unchanged board, which
+* are served from the cache, and a render right after each move.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+  @Param({"3", "8"})
+  int size;
+
+  TTT ttt;
+
+  @Setup
+  public void setup() {
+    ttt = new TTT(size, size);
+    ttt.setPlayer1("u1");
+    ttt.setPlayer2("u2");
+    ttt.set("u1", 0, 0);
+  }
+
+  @Benchmark
+  public String cached() {
+    return ttt.getBoardString();
+  }
+
+  @Benchmark
+  public String afterSet() {
+    ttt.reset();
+    ttt.setPlayer1("u1");
+    ttt.setPlayer2("u2");
+    ttt.set("u1", size / 2, size / 2);
+    return ttt.getBoardString();
+  }
+}
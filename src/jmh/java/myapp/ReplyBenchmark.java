@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* DemoServlet request ingest and reply building: ParamView against the
+* HashMap copy it replaced, and JsonReply against String.format. Run
+* with -prof gc to compare allocation per request.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyBenchmark {
+  Map<String, String []> params;
+  String board;
+
+  @Setup
+  public void setup() {
+    params = new LinkedHashMap<>();
+    String [][] kv = {
+      {"token", "abcdef"}, {"team_id", "T0001"}, {"team_domain", "example"},
+      {"channel_id", "C2147483705"}, {"channel_name", "test"},
+      {"user_id", "U2147483697"}, {"user_name", "Steve"},
+      {"command", "/ttt"}, {"text", "put 1 1"},
+      {"response_url", "https://hooks.slack.com/commands/1234/5678"}
+    };
+    for(String [] e: kv) {
+      params.put(e[0], new String[] {e[1]});
+    }
+    TTT ttt = new TTT();
+    ttt.setPlayer1("u1");
+    ttt.setPlayer2("u2");
+    ttt.set("u1", 1, 1);
+    board = ttt.getBoardString() + "Next move is for player u2";
+  }
+
+  @Benchmark
+  public String ingestView() {
+    Map<String, String> map = new ParamView(params);
+    return map.get("text") + map.get("channel_name");
+  }
+
+  @Benchmark
+  public String ingestCopy() {
+    Map<String, String> map = new HashMap<>();
+    for(Map.Entry<String, String []> e: params.entrySet()) {
+      String [] v = e.getValue();
+      map.put(e.getKey(), v[v.length - 1]);
+    }
+    return map.get("text") + map.get("channel_name");
+  }
+
+  @Benchmark
+  public int jsonReply() {
+    JsonReply reply = JsonReply.get();
+    reply.beginObject();
+    reply.field("response_type", "in_channel");
+    reply.field("text", board);
+    reply.endObject();
+    return reply.length();
+  }
+
+  @Benchmark
+  public int stringFormat() {
+    String rspType = "\"response_type\": \"in_channel\"";
+    return String.format("{ %s, \"text\": \"%s\" }", rspType, board).getBytes().length;
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+* Warm start from a snapshot of many channels: the time from an empty
+* Memory to serving the first command, as init does it. recover maps the
+* snapshot and should not grow with the channel count. recoverAndLoadAll
+* also loads every board, which is what a full decode at startup costs.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StartupBenchmark {
+  @Param({"100000"})
+  int channels;
+
+  File dir;
+
+  @Setup
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("ttt-startup").toFile();
+    Memory memory = new Memory();
+    for(int i = 0; i < channels; i++) {
+      TTT ttt = new TTT();
+      ttt.setPlayer1("u" + (i % 1000));
+      ttt.setPlayer2("u" + ((i + 1) % 1000));
+      ttt.setIsReady();
+      ttt.set(ttt.getCurrentPlayer(), 0, 0);
+      ttt.set(ttt.getCurrentPlayer(), 1, 1);
+      memory.mapCurrent.put("c" + i, ttt);
+    }
+    TTTSnapshot.write(new File(dir, "snapshot-1.dat"), 1, memory);
+  }
+
+  @TearDown
+  public void tearDown() {
+    for(File file: dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private Memory recoverMemory() throws IOException {
+    Memory memory = new Memory();
+    new TTTJournal(dir, TTTConfig.journalFlushMS, TTTConfig.journalSync)
+      .recover(memory);
+    return memory;
+  }
+
+  @Benchmark
+  public TTT recover() throws IOException {
+    Memory memory = recoverMemory();
+    String channel = "c" + (channels / 2);
+    memory.getLock(channel).lock();
+    try {
+      return memory.getBoard(channel);
+    } finally {
+      memory.getLock(channel).unlock();
+    }
+  }
+
+  @Benchmark
+  public int recoverAndLoadAll() throws IOException {
+    Memory memory = recoverMemory();
+    int loaded = 0;
+    for(int i = 0; i < channels; i++) {
+      if(memory.getBoard("c" + i) != null) {
+        loaded++;
+      }
+    }
+    return loaded;
+  }
+}
@@ -20,7 +20,59 @@ import java.io.IOException;
 import javax.servlet.http.*;
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.zip.CRC32;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import javax.servlet.AsyncContext;
 import javax.servlet.annotation.MultipartConfig;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 
 /**
 * This is a tic tac toe program for deployed on google cloud.
@@ -46,6 +98,8 @@ import javax.servlet.annotation.MultipartConfig;
 *   start [username_to_invite]  // type start or start username. 
 *                               // if start, anyone who types start can play.
 *                               // if start username, only username can play.
+*   start bot [level] [size]    // play the computer, level easy|medium|hard
+*                               // on a size x size board, default 3.
 *   put <row> <col>             // valid 0:2 for row, 0:2 for column
 *   resign|quit                 // quit the game. The initiator loses.
 *   status                      // print the board for anyone to see.
@@ -82,16 +136,35 @@ import javax.servlet.annotation.MultipartConfig;
 * Summary of all classes.
 * 
 * DemoServlet		index_DEMOSERVLET
+* JsonReply		index_JSONREPLY
+* ParamView		index_PARAMVIEW
 * TTTResponse		index_TTTRESPONSE
 * Coord			index_COORD
 * Memory		index_MEMORY
 * Processor		index_PROCESSOR
+* ChannelExecutor	index_CHANNELEXECUTOR
+* TTTReaper		index_TTTREAPER
+* TTTDedup		index_TTTDEDUP
+* TTTLimiter		index_TTTLIMITER
+* TTTDelivery		index_TTTDELIVERY
+* TTTCodec		index_TTTCODEC
+* TTTJournal		index_TTTJOURNAL
+* TTTSnapshot		index_TTTSNAPSHOT
+* DatastoreMemory	index_DATASTOREMEMORY
 * Command		index_COMMAND
 * CMD			index_CMD
 * TTT			index_TTT
+* TTTBitBoard		index_TTTBITBOARD
+* TTTOracle		index_TTTORACLE
+* TTTBot			index_TTTBOT
 * TTTRecord 		index_TTTRECORD
+* TTTHistory 		index_TTTHISTORY
 * TTTUserStats		index_TTTUSERSTATS
+* TTTLeaderboard	index_TTTLEADERBOARD
+* TTTStats		index_TTTSTATS
 * TTTConfig             index_TTTCONFIG
+* TTTLog                index_TTTLOG
+* TTTMetrics            index_TTTMETRICS
 *
 * Functionality flow:
 * 1. POSTs get handled in DemoServlet, which passes the parameter map
@@ -106,55 +179,87 @@ import javax.servlet.annotation.MultipartConfig;
 *    is used to indicate command status and message. The response is
 *    used to determine if it should be an error, private message, or
 *    public message.
-* 6. TTTRecord, TTTUserStats can be used to do historical records.
-*    This is not implemented.
+* 6. Finished games are kept as compact TTTRecords in TTTHistory,
+*    which is bounded per channel and globally. Each result is also
+*    counted once in TTTStats, which keeps TTTUserStats per user, both
+*    globally and per channel, and a TTTLeaderboard of the top k for
+*    each. The stats and leaderboard commands read these directly.
 *
 */
 
 /**
 * index_DEMOSERVLET
 * 
+* With -Dttt.async=true, doPost hands each command to a worker pool
+* and returns the container thread. Commands Processor.isDeferred calls
+* slow are acknowledged at once with an empty 200 and answered on
+* response_url through TTTDelivery. The others run under an AsyncContext
+* and answer on the response as usual. If one has not finished after
+* TTTConfig.ackMS, an empty 200 goes out and its answer follows on
+* response_url, well inside Slack's 3 second limit.
+* 
+* With -Dttt.stub=true, /stub stands in for response_url: POSTs to it
+* are kept, the last TTTConfig.stubSize of them, and GET lists them.
 * 
 * public void init
 * public void destroy
 * private String printHeaders(HttpServletRequest req)
-* private String getParams(HttpServletRequest req)
+* private TTTResponse getParams(HttpServletRequest req)
+* private static boolean isRetry(HttpServletRequest req)
+* private String dumpParams(Map<String, String []> map)
+* private void writeReply(HttpServletResponse rsp, TTTResponse response)
+* private void writeMetrics(HttpServletResponse rsp)
 * public void doGet(HttpServletRequest req, HttpServletResponse rsp)
 * public void doPost(HttpServletRequest req, HttpServletResponse rsp)
+* private void dispatch(HttpServletRequest req, HttpServletResponse rsp)
+* private void reply(AsyncContext ctx, TTTResponse response)
+* private void writeAck(HttpServletResponse rsp)
+* private void stubPost(HttpServletRequest req, HttpServletResponse rsp)
+* private void stubGet(HttpServletResponse rsp)
 * 
 */
 @MultipartConfig
 public class DemoServlet extends HttpServlet {
-  private PrintWriter pw = null;
   private Processor processor = null;
+  private TTTLimiter limiter = null;
+  // async mode only
+  private ThreadPoolExecutor workers = null;
+  private ScheduledThreadPoolExecutor ackTimer = null;
+  private TTTDelivery delivery = null;
+  private final ArrayDeque<String> stubPosts = new ArrayDeque<>();
 
   public void init() {
-    p("Init called\n");
-    String filename = "log.demo.log";
+    TTTLog.configure();
+    TTTLog.info("Init called");
     processor = new Processor();
-    try {
-      //File file = new File(filename);
-      //FileWriter fw = new FileWriter(file);
-      //BufferedWriter bw = new BufferedWriter(fw);
-      //pw = new PrintWriter(bw, true);
-    } catch(Exception e) {
+    limiter = new TTTLimiter(processor.getMetrics());
+    if(TTTConfig.useAsync) {
+      workers = new ThreadPoolExecutor(TTTConfig.asyncThreads, 
+        TTTConfig.asyncThreads, 0, TimeUnit.MILLISECONDS, 
+        new ArrayBlockingQueue<>(TTTConfig.asyncQueue));
+      ackTimer = new ScheduledThreadPoolExecutor(1);
+      ackTimer.setRemoveOnCancelPolicy(true);
+      delivery = new TTTDelivery(TTTConfig.deliveryThreads, 
+        TTTConfig.deliveryCapacity, processor.getMetrics());
     }
   }
 
   public void destroy() {
-    p("Destroy called\n");
-    if(pw != null) {
-      pw.close();
-      pw = null;
+    TTTLog.info("Destroy called");
+    if(workers != null) {
+      workers.shutdown();
+      try {
+        workers.awaitTermination(TTTConfig.mailboxWaitMS, TimeUnit.MILLISECONDS);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      ackTimer.shutdownNow();
+      delivery.shutdown();
     }
-  }
-
-  private void p(String f, Object ...o) {
-    String msg = String.format(f, o);
-    System.out.printf(msg);
-    if(pw != null) {
-      pw.print(msg);
+    if(processor != null) {
+      processor.shutdown();
     }
+    TTTLog.shutdown();
   }
 
   private String printHeaders(HttpServletRequest req) {
@@ -163,104 +268,514 @@ public class DemoServlet extends HttpServlet {
     while(headerNames.hasMoreElements()) {
       String headerName = headerNames.nextElement();
       Enumeration<String> headerValues = req.getHeaders(headerName);
-      String msg = String.format("\theaderName:%s = ", headerName);
-      if(TTTConfig.debug) {
-          p(msg);
-      }
-      sb.append(msg);
+      sb.append("\theaderName:").append(headerName).append(" = ");
       while(headerValues.hasMoreElements()) {
-        String headerValue = headerValues.nextElement();
-        msg = String.format("%s ", headerValue);
-        if(TTTConfig.debug) {
-          p(msg);
-        }
-        sb.append(msg);
-      }
-      if(TTTConfig.debug) {
-        p("\n");
+        sb.append(headerValues.nextElement()).append(' ');
       }
       sb.append("\n");
     }
-    return sb.toString();
+    String msg = sb.toString();
+    TTTLog.debug(msg);
+    return msg;
+  }
+
+  /**
+   * Pass a read-only view of the request parameters to the processor.
+   * The parameter dump is only built for debug logging or for the
+   * error reply that echoes it.
+   */
+  private TTTResponse getParams(HttpServletRequest req) {
+    Map<String, String []> map = req.getParameterMap();
+    if(TTTLog.isDebug()) {
+      TTTLog.debug(dumpParams(map));
+    }
+
+    TTTResponse result = processor.process(new ParamView(map), isRetry(req));
+
+    if(result == null) {
+      TTTLog.debug("getParams response null");
+      return new TTTResponse(CMD.ERR, dumpParams(map));
+    }
+    TTTLog.debug("getParams response OK");
+    return result;
+  }
+
+  /** Slack marks its redeliveries of a request that timed out. */
+  private static boolean isRetry(HttpServletRequest req) {
+    return req.getHeader("X-Slack-Retry-Num") != null;
   }
 
-  private String getParams(HttpServletRequest req) {
+  private String dumpParams(Map<String, String []> map) {
     StringBuilder sb = new StringBuilder();
-    p("\tgetParams ");
     sb.append("\tgetParams ");
-    Map<String, String []> map = req.getParameterMap();
-    HashMap<String, String> hmap = new HashMap<>();
-    String msg = null;
     for(Map.Entry<String,String []> kv: map.entrySet()) {
-      String key = kv.getKey();
-      msg = String.format("%s", key);
-      sb.append(msg);
-      String [] sary = kv.getValue();
-      String value = null;
-      for(String s: sary) {
-        msg = String.format("=%s", s);
-        sb.append(msg);
-        value = s;
+      sb.append(kv.getKey());
+      for(String s: kv.getValue()) {
+        sb.append('=').append(s);
       }
-      hmap.put(key, value);
-      msg = " ";
-      sb.append(msg);
+      sb.append(' ');
     }
     sb.append("\n");
-    msg = sb.toString();
-    if(TTTConfig.debug) {
-      p(msg);
+    return sb.toString();
+  }
+
+  /**
+   * Encode the Slack reply straight into the thread's JsonReply buffer
+   * and write it with an explicit Content-Length.
+   */
+  private void writeReply(HttpServletResponse rsp, TTTResponse response)
+    throws IOException
+  {
+    JsonReply.encode(response).writeTo(rsp);
+  }
+
+  /** Empty 200: Slack takes it as received, and shows nothing. */
+  private void writeAck(HttpServletResponse rsp) {
+    rsp.setStatus(HttpServletResponse.SC_OK);
+    rsp.setContentLength(0);
+  }
+
+  private void writeMetrics(HttpServletResponse rsp) throws IOException {
+    StringBuilder sb = new StringBuilder(4096);
+    processor.getMetrics().render(processor.getMemory(), sb);
+    rsp.setContentType("text/plain; version=0.0.4");
+    rsp.setCharacterEncoding("UTF-8");
+    rsp.getWriter().print(sb);
+  }
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse rsp)
+      throws IOException {
+    TTTLog.debug("doGet called");
+    if("/metrics".equals(req.getServletPath())) {
+      writeMetrics(rsp);
+      return;
+    }
+    if("/stub".equals(req.getServletPath())) {
+      stubGet(rsp);
+      return;
     }
+    if(TTTLog.isDebug()) {
+      printHeaders(req);
+    }
+    rsp.setContentType("text/plain");
+    rsp.getWriter().println("{ \"name\": \"World Whatever\" }");
+  }
 
-    TTTResponse result = processor.process(hmap);
-    String rspString = null;
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse rsp)
+    throws IOException
+  {
+    TTTLog.debug("doPost called");
+    if("/stub".equals(req.getServletPath())) {
+      stubPost(req, rsp);
+      return;
+    }
+    if("/metrics".equals(req.getServletPath())) {
+      // read only, and never a game command
+      rsp.setHeader("Allow", "GET");
+      rsp.setStatus(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return;
+    }
+    // turned away requests get a short ephemeral reply and no board
+    if(!limiter.enter()) {
+      writeReply(rsp, TTTLimiter.SHED);
+      return;
+    }
+    boolean dispatched = false;
+    try {
+      // a redelivery answered by TTTDedup spends no tokens
+      if(!processor.isReplay(new ParamView(req.getParameterMap()), 
+        isRetry(req)) && !limiter.tryAcquire(req.getParameter("user_id"), 
+        req.getParameter("channel_id"))) 
+      {
+        writeReply(rsp, TTTLimiter.LIMITED);
+        return;
+      }
+      if(workers != null && req.isAsyncSupported()) {
+        dispatch(req, rsp);
+        dispatched = true;
+        return;
+      }
+      TTTResponse response = getParams(req);
+      writeReply(rsp, response);
+    } finally {
+      if(!dispatched) {
+        limiter.exit();
+      }
+    }
+  }
 
-    if(result == null) {
-      if(TTTConfig.debug) {
-          p("getParams response null\n");
+  /**
+   * Run the command on a worker, see the class comment. The parameters
+   * are copied since the worker can outlive the request. The request
+   * stays in flight for the limiter until the worker is done.
+   */
+  private void dispatch(HttpServletRequest req, HttpServletResponse rsp)
+    throws IOException
+  {
+    Map<String, String []> raw = new HashMap<>(req.getParameterMap());
+    Map<String, String> params = new ParamView(raw);
+    boolean isRetry = isRetry(req);
+    Command cmd = processor.parse(params);
+    String responseUrl = params.get("response_url");
+    if(!TTTDelivery.accepts(responseUrl)) {
+      responseUrl = null;
+    }
+    String url = responseUrl;
+    if(url != null && processor.isDeferred(cmd)) {
+      try {
+        workers.execute(() -> {
+          try {
+            TTTResponse response;
+            try {
+              response = processor.process(params, cmd, isRetry);
+            } catch(RuntimeException e) {
+              // the user has the ack, so the error still has to follow
+              TTTLog.warning("command failed: %s", e);
+              response = new TTTResponse(CMD.ERR, "Server error. Try again...");
+            }
+            delivery.post(url, (response != null) ? response :
+              new TTTResponse(CMD.ERR, dumpParams(raw)));
+          } finally {
+            limiter.exit();
+          }
+        });
+        writeAck(rsp);
+      } catch(RejectedExecutionException e) {
+        limiter.exit();
+        writeReply(rsp, TTTLimiter.SHED);
       }
-      String rspType = "\"response_type\": \"ephemeral\"";
-      rspString = String.format("{ %s, \"text\": \"%s\" }", rspType, msg);
+      return;
     }
-    else {
-      if(TTTConfig.debug) {
-        p("getParams response OK\n");
+    AsyncContext ctx = req.startAsync();
+    ctx.setTimeout(0);
+    // whoever answers first, the worker or the ack timer, owns ctx
+    AtomicBoolean answered = new AtomicBoolean();
+    // scheduled before the worker starts, so the worker can cancel it
+    ScheduledFuture<?> ack = (url == null) ? null : ackTimer.schedule(() -> {
+      if(answered.compareAndSet(false, true)) {
+        try {
+          writeAck((HttpServletResponse)ctx.getResponse());
+        } finally {
+          ctx.complete();
+        }
       }
-      msg = result.message;
-      if(result.status == CMD.OK_PUBLIC) {
-        String rspType = "\"response_type\": \"in_channel\"";
-        rspString = String.format("{ %s, \"text\": \"%s\" }", rspType, msg);
+    }, TTTConfig.ackMS, TimeUnit.MILLISECONDS);
+    try {
+      workers.execute(() -> {
+        try {
+          TTTResponse response;
+          try {
+            response = processor.process(params, cmd, isRetry);
+          } catch(RuntimeException e) {
+            // ctx must still be completed
+            TTTLog.warning("command failed: %s", e);
+            response = new TTTResponse(CMD.ERR, "Server error. Try again...");
+          }
+          if(response == null) {
+            response = new TTTResponse(CMD.ERR, dumpParams(raw));
+          }
+          if(answered.compareAndSet(false, true)) {
+            if(ack != null) {
+              ack.cancel(false);
+            }
+            reply(ctx, response);
+          }
+          else {
+            delivery.post(url, response);
+          }
+        } finally {
+          limiter.exit();
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      limiter.exit();
+      if(answered.compareAndSet(false, true)) {
+        if(ack != null) {
+          ack.cancel(false);
+        }
+        reply(ctx, TTTLimiter.SHED);
       }
-      else {
-        String rspType = "\"response_type\": \"ephemeral\"";
-        rspString = String.format("{ %s, \"text\": \"%s\" }", rspType, msg);
+    }
+  }
+
+  /** Write response on ctx and complete it, whatever writing throws. */
+  private void reply(AsyncContext ctx, TTTResponse response) {
+    try {
+      writeReply((HttpServletResponse)ctx.getResponse(), response);
+    } catch(IOException | RuntimeException e) {
+      TTTLog.warning("reply failed: %s", e);
+    } finally {
+      ctx.complete();
+    }
+  }
+
+  private void stubPost(HttpServletRequest req, HttpServletResponse rsp)
+    throws IOException
+  {
+    if(!TTTConfig.useStub) {
+      rsp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try(InputStream in = req.getInputStream()) {
+      byte [] buf = new byte[4096];
+      for(int n; (n = in.read(buf)) >= 0; ) {
+        body.write(buf, 0, n);
       }
     }
-    
-    return rspString;
+    synchronized(stubPosts) {
+      if(stubPosts.size() == TTTConfig.stubSize) {
+        stubPosts.removeFirst();
+      }
+      stubPosts.addLast(body.toString("UTF-8"));
+    }
+    writeAck(rsp);
   }
 
-  @Override
-  public void doGet(HttpServletRequest req, HttpServletResponse rsp)
-      throws IOException {
-      if(TTTConfig.debug) {
-        p("doGet called\n");
+  private void stubGet(HttpServletResponse rsp) throws IOException {
+    if(!TTTConfig.useStub) {
+      rsp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    StringBuilder sb = new StringBuilder();
+    synchronized(stubPosts) {
+      for(String post: stubPosts) {
+        sb.append(post).append('\n');
       }
-    printHeaders(req);
+    }
     rsp.setContentType("text/plain");
-    rsp.getWriter().println("{ \"name\": \"World Whatever\" }");
+    rsp.setCharacterEncoding("UTF-8");
+    rsp.getWriter().print(sb);
+  }
+
+}
+
+/**
+* index_PARAMVIEW
+* ParamView
+*
+* Read-only Map<String,String> over a servlet parameter map. Like the
+* copy it replaces, a repeated parameter reads as its last value.
+* Lookups go straight to the underlying map, so nothing is copied per
+* request.
+*
+* Summary of methods:
+* public ParamView(Map<String, String []> params)
+* public String get(Object key)
+* public boolean containsKey(Object key)
+* public int size()
+* public Set<Map.Entry<String, String>> entrySet()
+*/
+class ParamView extends AbstractMap<String, String> {
+  private final Map<String, String []> params;
+
+  public ParamView(Map<String, String []> params) {
+    this.params = params;
   }
 
   @Override
-  public void doPost(HttpServletRequest req, HttpServletResponse rsp)
-    throws IOException
-  {
-    p("doPost called\n");
-    String msg = getParams(req);
+  public String get(Object key) {
+    return last(params.get(key));
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return params.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return params.size();
+  }
+
+  @Override
+  public Set<Map.Entry<String, String>> entrySet() {
+    return new AbstractSet<Map.Entry<String, String>>() {
+      @Override
+      public int size() {
+        return params.size();
+      }
+
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator() {
+        Iterator<Map.Entry<String, String []>> it = params.entrySet().iterator();
+        return new Iterator<Map.Entry<String, String>>() {
+          public boolean hasNext() {
+            return it.hasNext();
+          }
+
+          public Map.Entry<String, String> next() {
+            Map.Entry<String, String []> kv = it.next();
+            return new AbstractMap.SimpleImmutableEntry<>(kv.getKey(), 
+              last(kv.getValue()));
+          }
+        };
+      }
+    };
+  }
+
+  private static String last(String [] values) {
+    if(values == null || values.length == 0) {
+      return null;
+    }
+    return values[values.length - 1];
+  }
+}
+
+/**
+* index_JSONREPLY
+* JsonReply
+*
+* Minimal streaming JSON encoder for the flat Slack reply object. String
+* values are escaped and UTF-8 encoded directly into a byte buffer that
+* is reused by each request thread. The buffer is dropped back to its
+* initial size after an unusually large reply so it cannot pin memory.
+*
+* Summary of methods:
+* public static JsonReply get()
+* public static JsonReply encode(TTTResponse response)
+* public void beginObject()
+* public void field(String name, String value)
+* public void endObject()
+* public int length()
+* public void writeTo(HttpServletResponse rsp)
+* public void writeTo(OutputStream os)
+*/
+class JsonReply {
+  private static final int INITIAL_SIZE = 1024;
+  private static final int MAX_RETAINED_SIZE = 64 * 1024;
+  private static final byte [] HEX = "0123456789abcdef".getBytes();
+  private static final ThreadLocal<JsonReply> local = 
+    ThreadLocal.withInitial(JsonReply::new);
+
+  private byte [] buf = new byte[INITIAL_SIZE];
+  private int len = 0;
+  private boolean firstField = true;
+
+  /** The calling thread's encoder, emptied. */
+  public static JsonReply get() {
+    JsonReply reply = local.get();
+    if(reply.buf.length > MAX_RETAINED_SIZE) {
+      reply.buf = new byte[INITIAL_SIZE];
+    }
+    reply.len = 0;
+    reply.firstField = true;
+    return reply;
+  }
+
+  /** The Slack reply for response in the calling thread's encoder. */
+  public static JsonReply encode(TTTResponse response) {
+    JsonReply reply = get();
+    reply.beginObject();
+    reply.field("response_type", 
+      (response.status == CMD.OK_PUBLIC) ? "in_channel" : "ephemeral");
+    reply.field("text", response.message);
+    reply.endObject();
+    return reply;
+  }
+
+  public void beginObject() {
+    put('{');
+    firstField = true;
+  }
+
+  public void field(String name, String value) {
+    if(!firstField) {
+      put(',');
+    }
+    firstField = false;
+    string(name);
+    put(':');
+    if(value == null) {
+      ascii("null");
+    }
+    else {
+      string(value);
+    }
+  }
+
+  public void endObject() {
+    put('}');
+  }
+
+  public int length() {
+    return len;
+  }
+
+  public void writeTo(HttpServletResponse rsp) throws IOException {
     rsp.setContentType("application/json");
-    rsp.getWriter().println(msg);
+    rsp.setCharacterEncoding("UTF-8");
+    rsp.setContentLength(len);
+    writeTo(rsp.getOutputStream());
+  }
+
+  public void writeTo(OutputStream os) throws IOException {
+    os.write(buf, 0, len);
+    os.flush();
+  }
+
+  private void string(String s) {
+    put('"');
+    int n = s.length();
+    for(int i = 0; i < n; i++) {
+      char c = s.charAt(i);
+      switch(c) {
+        case '"':  put('\\'); put('"'); break;
+        case '\\': put('\\'); put('\\'); break;
+        case '\n': put('\\'); put('n'); break;
+        case '\r': put('\\'); put('r'); break;
+        case '\t': put('\\'); put('t'); break;
+        case '\b': put('\\'); put('b'); break;
+        case '\f': put('\\'); put('f'); break;
+        default:
+          if(c < 0x20) {
+            ascii("\\u00");
+            put(HEX[c >> 4]);
+            put(HEX[c & 0xf]);
+          }
+          else if(c < 0x80) {
+            put(c);
+          }
+          else if(c < 0x800) {
+            put(0xc0 | (c >> 6));
+            put(0x80 | (c & 0x3f));
+          }
+          else if(Character.isHighSurrogate(c) && i + 1 < n && 
+                  Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            put(0xf0 | (cp >> 18));
+            put(0x80 | ((cp >> 12) & 0x3f));
+            put(0x80 | ((cp >> 6) & 0x3f));
+            put(0x80 | (cp & 0x3f));
+          }
+          else if(Character.isSurrogate(c)) {
+            // unpaired surrogate, not encodable
+            put('?');
+          }
+          else {
+            put(0xe0 | (c >> 12));
+            put(0x80 | ((c >> 6) & 0x3f));
+            put(0x80 | (c & 0x3f));
+          }
+      }
+    }
+    put('"');
   }
 
+  private void ascii(String s) {
+    for(int i = 0; i < s.length(); i++) {
+      put(s.charAt(i));
+    }
+  }
+
+  private void put(int b) {
+    if(len == buf.length) {
+      buf = Arrays.copyOf(buf, buf.length * 2);
+    }
+    buf[len++] = (byte)b;
+  }
 }
 
 /**
@@ -268,12 +783,18 @@ public class DemoServlet extends HttpServlet {
 * TTT
 * summary of methods:
 * TTT()
+* TTT(int size, int winLength)
+* public int getSize()
+* public int getWinLength()
+* public long getGameId()
+* public static TTT restore(...)
+* public TTT copy()
 * public void reset()
 * public boolean getIsReady()
 * public void setIsReady()
 * public String getBoardString()
 * public boolean set(int row, int col)
-* private evaluateBoard()
+* private evaluateBoard(int row, int col)
 * public boolean setInvitee(String username) 
 * public String getInvitee()
 * public boolean setPlayer1(String username)
@@ -282,6 +803,8 @@ public class DemoServlet extends HttpServlet {
 * public String getPlayer2()
 * public boolean getIsDone()
 * public String getWinner()
+* public boolean isDraw()
+* public byte [] getMoves()
 * public void printBoard()
 * public String getCurrentPlayer()
 * public boolean isPlayer1()
@@ -290,8 +813,17 @@ public class DemoServlet extends HttpServlet {
 * 
 */
 class TTT {
-  int size = 3;
-  char [][] board = new char[size][size];
+  int size;
+  int winLength;
+  char [][] board;
+  TTTBitBoard bits;
+  char [] render;
+  String renderCache = null;
+  // marks per player on each row, column and the two long diagonals
+  int [][] rowCount;
+  int [][] colCount;
+  int [] diagCount = new int[2];
+  int [] antiCount = new int[2];
   boolean isPlayer1 = true;
   String player1 = null;
   String player2 = null;
@@ -300,18 +832,99 @@ class TTT {
   boolean isDone = false;
   boolean isReady = false;
   int numPopulated = 0;
+  // cell index row * size + col of each move, in order
+  byte [] moves;
   long timeLastMS = System.currentTimeMillis();
+  // identifies this game across journal replay
+  long gameId = ThreadLocalRandom.current().nextLong();
 
   public TTT() {
+    this(3, 3);
+  }
+
+  /** size x size board, winLength marks in a row wins. */
+  public TTT(int size, int winLength) {
+    this.size = size;
+    this.winLength = winLength;
+    board = new char[size][size];
+    bits = new TTTBitBoard(size, winLength);
+    render = renderTemplates.computeIfAbsent(size, TTT::renderTemplate).clone();
+    rowCount = new int[2][size];
+    colCount = new int[2][size];
+    moves = new byte[size * size];
     reset();
   }
 
+  public int getSize() {
+    return size;
+  }
+
+  public int getWinLength() {
+    return winLength;
+  }
+
+  public long getGameId() {
+    return gameId;
+  }
+
+  /**
+   * Rebuild a board from its persisted fields by replaying the moves,
+   * so counters, bitboard and rendering match the original. A game
+   * that ended by quit rather than on the board gets its result set
+   * afterwards.
+   */
+  public static TTT restore(int size, int winLength, long gameId,
+    String player1, String player2, String invitee, byte [] moves,
+    boolean isDone, String winner, long timeLastMS)
+  {
+    return restore(size, winLength, gameId, player1, player2, invitee, 
+      moves, moves.length, isDone, winner, timeLastMS);
+  }
+
+  /** restore from the first numMoves of moves. */
+  public static TTT restore(int size, int winLength, long gameId,
+    String player1, String player2, String invitee, byte [] moves,
+    int numMoves, boolean isDone, String winner, long timeLastMS)
+  {
+    TTT ttt = new TTT(size, winLength);
+    ttt.gameId = gameId;
+    ttt.player1 = player1;
+    ttt.player2 = player2;
+    ttt.playerInvitee = invitee;
+    for(int i = 0; i < numMoves; i++) {
+      ttt.set(ttt.getCurrentPlayer(), moves[i] / size, moves[i] % size);
+    }
+    if(isDone && !ttt.isDone) {
+      ttt.isDone = true;
+      ttt.winner = winner;
+    }
+    ttt.setIsReady();
+    ttt.timeLastMS = timeLastMS;
+    return ttt;
+  }
+
+  /** Same game in a board of its own, to read without the channel lock. */
+  public TTT copy() {
+    return restore(size, winLength, gameId, player1, player2, playerInvitee,
+      moves, numPopulated, isDone, winner, timeLastMS);
+  }
+
   public void reset() {
     for(int i = 0; i < size; i++) {
       for(int j = 0; j < size; j++) {
         board[i][j] = ' ';
       }
     }
+    bits.reset();
+    char [] template = renderTemplates.get(size);
+    System.arraycopy(template, 0, render, 0, render.length);
+    renderCache = null;
+    for(int p = 0; p < 2; p++) {
+      Arrays.fill(rowCount[p], 0);
+      Arrays.fill(colCount[p], 0);
+      diagCount[p] = 0;
+      antiCount[p] = 0;
+    }
     isDone = false;
     winner = null;
     player1 = null;
@@ -363,26 +976,45 @@ class TTT {
     }
   }
 
-  private void p(String f, Object ...o) {
-    String msg = String.format(f, o);
-    System.out.printf(msg);
+  /**
+   * The rendered board is kept in render, a copy of the template for 
+   * this size, and set patches the one slot a move changes. The String
+   * is built at most once between changes.
+   */
+  public String getBoardString() {
+    if(renderCache == null) {
+      renderCache = new String(render);
+    }
+    return renderCache;
   }
 
-  public String getBoardString() {
-    StringBuilder sb = new StringBuilder();
-    String msg;
-    msg = "\n" + "```";
-    sb.append(msg);
+  private static final String RENDER_PREFIX = "\n```";
+  private static final Map<Integer, char []> renderTemplates = 
+    new ConcurrentHashMap<>();
+
+  /** Empty board: separator and cell lines for each row, then a separator. */
+  private static char [] renderTemplate(int size) {
+    StringBuilder sep = new StringBuilder();
+    for(int j = 0; j < size; j++) {
+      sep.append("+-");
+    }
+    sep.append("+");
+    StringBuilder sb = new StringBuilder(RENDER_PREFIX);
     for(int i = 0; i < size; i++) {
-      msg = String.format("+-+-+-+\n");
-      sb.append(msg);
-      msg = String.format("|%s|%s|%s|\n", board[i][0], board[i][1], board[i][2]);
-      sb.append(msg);
+      sb.append(sep).append("\n");
+      for(int j = 0; j < size; j++) {
+        sb.append("| ");
+      }
+      sb.append("|\n");
     }
-    msg = String.format("+-+-+-+```\n");
-    sb.append(msg);
-    msg = sb.toString();
-    return msg;
+    sb.append(sep).append("```\n");
+    return sb.toString().toCharArray();
+  }
+
+  /** Index in render of the cell at row,col. */
+  private int renderSlot(int row, int col) {
+    int lineLength = 2 * size + 2;
+    return RENDER_PREFIX.length() + (2 * row + 1) * lineLength + 2 * col + 1;
   }
 
   public boolean set(String user, int row, int col) {
@@ -400,9 +1032,22 @@ class TTT {
     if(c != ' ') {
       return false;
     }
+    int player = (isPlayer1) ? 0 : 1;
     board[row][col] = (isPlayer1) ? 'X' : 'O';
+    render[renderSlot(row, col)] = board[row][col];
+    renderCache = null;
+    bits.set(player, row, col);
+    rowCount[player][row]++;
+    colCount[player][col]++;
+    if(row == col) {
+      diagCount[player]++;
+    }
+    if(row + col == size - 1) {
+      antiCount[player]++;
+    }
+    moves[numPopulated] = (byte)(row * size + col);
     numPopulated++;
-    evaluateBoard();
+    evaluateBoard(row, col);
     isPlayer1 = !isPlayer1;
     return true;
   }
@@ -429,44 +1074,47 @@ class TTT {
     return true;
   }
 
-  private void evaluateBoard() {
+  /**
+   * Only lines through the last move can have been completed by it.
+   * When a full row, column or diagonal is needed to win, the running
+   * counts for the mover answer that directly. Shorter k in a row
+   * variants check the lines through the cell on the bitboard. Once
+   * every cell is populated without a winner the game is a draw.
+   */
+  private void evaluateBoard(int row, int col) {
     if(isDone) {
       return;
     }
-    char c;
-    // check across
-    for(int i = 0; i < size; i++) {
-      c = board[i][0];
-      if(c != ' ' && c == board[i][1] && c == board[i][2]) {
-        winner = (c == 'X') ? player1 : player2;
-        isDone = true;
-        return;
-      }
+    int player = (isPlayer1) ? 0 : 1;
+    boolean won;
+    if(winLength == size) {
+      won = rowCount[player][row] == size ||
+            colCount[player][col] == size ||
+            (row == col && diagCount[player] == size) ||
+            (row + col == size - 1 && antiCount[player] == size);
     }
-    // check vertical
-    for(int i = 0; i < size; i++) {
-      c = board[0][i];
-      if(c != ' ' && c == board[1][i] && c == board[2][i]) {
-        winner = (c == 'X') ? player1 : player2;
-        isDone = true;
-        return;
-      }
+    else {
+      won = bits.isWin(player, row, col);
     }
-    // check diagonal
-    c = board[0][0];
-    if(c != ' ' && c == board[1][1] && c == board[2][2]) {
-      winner = (c == 'X') ? player1 : player2;
+    if(won) {
+      winner = (isPlayer1) ? player1 : player2;
       isDone = true;
       return;
     }
-    c = board[2][0];
-    if(c != ' ' && c == board[1][1] && c == board[0][2]) {
-      winner = (c == 'X') ? player1 : player2;
+    if(numPopulated == size * size) {
       isDone = true;
-      return;
     }
   }
 
+  /** Copy of the cell indexes played so far, in order. */
+  public byte [] getMoves() {
+    return Arrays.copyOf(moves, numPopulated);
+  }
+
+  public boolean isDraw() {
+    return isDone && winner == null;
+  }
+
   public boolean setPlayer1(String username) {
     if(player1 == null) {
       player1 = username;
@@ -520,654 +1168,5965 @@ class TTT {
   }
 
   public void printBoard() {
-    String msg = getBoardString();
-    p(msg);
+    TTTLog.info(getBoardString());
   }
 }
 
 /**
-* index_TTTRECORD
+* index_TTTBITBOARD
+* TTTBitBoard
+*
+* Board engine that keeps each player's marks as a bitmask, one bit per
+* cell at row * size + col, so boards up to 8x8 fit in a long. Winning
+* lines for a (size, winLength) pair are precomputed once and shared.
+* After a move only the lines through that cell are compared, which is
+* a handful of mask tests whatever the board size.
+*
+* Summary of methods:
+* public TTTBitBoard(int size, int winLength)
+* static WinLines winLines(int size, int winLength)
+* public void reset()
+* public void set(int player, int row, int col)
+* public int get(int row, int col)
+* public boolean isWin(int player, int row, int col)
+* public boolean hasWin(int player)
+* public boolean isFull()
+* public long getMarks(int player)
 */
-class TTTRecord {
-  public String winnerUser = null;
-  public String loserUser = null;
-  public String channel = null;
-}
+class TTTBitBoard {
+  public static final int MAX_SIZE = 8;
+  private static final Map<Integer, WinLines> tables = new ConcurrentHashMap<>();
 
-/**
-* index_TTTUSERSTATS
-*/
-class TTTUserStats {
-  public String user = null;
-  public List<TTTRecord> history = new ArrayList<>();
-  public int totalPlayed = 0;
-  public int totalWin = 0;
-  public int totalLoss = 0;
-}
-
-/**
-* index_MEMORY
-* Memory
-* Summary of methods:
-* public Memory() 
-* public clearAll()
-* public boolean updateBoard(String channel, TTT board)
-* public boolean setBoard(String channel, TTT board)
-* public boolean isBoardActive(String channel)
-* public TTT getBoard(String channel)
-* private boolean addHistory(String channel, TTT board)
-* public List<TTT> getHistory(String channel)
-*/
-class Memory {
-  Map<String, TTT> mapCurrent = new HashMap<>();
-  Map<String, List<TTT>> mapHistory = new HashMap<>();
-  Map<String, TTTUserStats> stats = new HashMap<>();
-
-  public Memory() {
-  }
+  private final int size;
+  private final WinLines winLines;
+  private final long fullMask;
+  private final long [] marks = new long[2];
 
-  public void clearAll() {
-    mapHistory.clear();
-    mapCurrent.clear();
+  public TTTBitBoard(int size, int winLength) {
+    if(size < 1 || size > MAX_SIZE || winLength < 1 || winLength > size) {
+      throw new IllegalArgumentException(
+        String.format("Unsupported board %d in a row on %dx%d", 
+          winLength, size, size));
+    }
+    this.size = size;
+    winLines = winLines(size, winLength);
+    int cells = size * size;
+    fullMask = (cells == 64) ? -1L : (1L << cells) - 1;
   }
 
-  public void clearAllActive() {
-    mapCurrent.clear();
+  /** The shared lines for a board shape the constructor accepts. */
+  static WinLines winLines(int size, int winLength) {
+    return tables.computeIfAbsent(size * (MAX_SIZE + 1) + winLength, 
+      k -> new WinLines(size, winLength));
   }
 
-  public void clearBoard(String channel) {
-    TTT ttt = mapCurrent.get(channel);
-    if(ttt != null) {
-      mapCurrent.put(channel, null);
-    }
+  public void reset() {
+    marks[0] = 0;
+    marks[1] = 0;
   }
 
-  public void clearChannelAll(String channel) {
+  /** player is 0 for X and 1 for O. */
+  public void set(int player, int row, int col) {
+    marks[player] |= 1L << (row * size + col);
   }
 
-  /** update state of board, must be same board as before. */
-  public boolean updateBoard(String channel, TTT board) {
-    TTT ttt = mapCurrent.get(channel);
-    if(board != ttt) {
-      return false;
+  /** Returns the player on row,col or -1 if the cell is empty. */
+  public int get(int row, int col) {
+    long bit = 1L << (row * size + col);
+    if((marks[0] & bit) != 0) {
+      return 0;
     }
-    return true;
+    if((marks[1] & bit) != 0) {
+      return 1;
+    }
+    return -1;
   }
 
-  /** Set a new board, previous board must be done first. */
-  public boolean setBoard(String channel, TTT board) {
-    if(isBoardActive(channel)) {
-      return false;
-    }
-    TTT ttt = mapCurrent.get(channel);
-    if(ttt != null) {
-      addHistory(channel, ttt);
+  /** Did the mark on row,col complete a line for player. */
+  public boolean isWin(int player, int row, int col) {
+    long m = marks[player];
+    for(long line: winLines.byCell[row * size + col]) {
+      if((m & line) == line) {
+        return true;
+      }
     }
-    mapCurrent.put(channel, board);
-    return true;
+    return false;
   }
 
-  public boolean isBoardActive(String channel) {
-    TTT ttt = mapCurrent.get(channel);
-    if(ttt == null) {
-      return false;
+  /** Does player own any complete line. */
+  public boolean hasWin(int player) {
+    long m = marks[player];
+    for(long line: winLines.all) {
+      if((m & line) == line) {
+        return true;
+      }
     }
-    return (!ttt.getIsDone());
+    return false;
   }
 
-  public TTT getBoard(String channel) {
-    return mapCurrent.get(channel);
+  public boolean isFull() {
+    return ((marks[0] | marks[1]) & fullMask) == fullMask;
   }
 
-  private boolean addHistory(String channel, TTT board) {
-    if(board == null || (!board.getIsDone())) {
-      return false;
-    }
-    List<TTT> list = mapHistory.get(channel);
-    if(list == null) {
-      list = new ArrayList<>();
-      mapHistory.put(channel, list);
-    }
-    list.add(board);
-    return true;
+  public long getMarks(int player) {
+    return marks[player];
   }
 
-  public List<TTT> getHistory(String channel) {
-    return mapHistory.get(channel);
+  /** Every winLength run across, down and on both diagonals. */
+  static class WinLines {
+    final long [] all;
+    final long [][] byCell;
+
+    WinLines(int size, int winLength) {
+      List<Long> lines = new ArrayList<>();
+      int [][] dirs = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+      for(int [] d: dirs) {
+        for(int r = 0; r < size; r++) {
+          for(int c = 0; c < size; c++) {
+            int rEnd = r + d[0] * (winLength - 1);
+            int cEnd = c + d[1] * (winLength - 1);
+            if(rEnd < 0 || rEnd >= size || cEnd < 0 || cEnd >= size) {
+              continue;
+            }
+            long line = 0;
+            for(int i = 0; i < winLength; i++) {
+              line |= 1L << ((r + d[0] * i) * size + (c + d[1] * i));
+            }
+            lines.add(line);
+          }
+        }
+      }
+      all = new long[lines.size()];
+      for(int i = 0; i < all.length; i++) {
+        all[i] = lines.get(i);
+      }
+      byCell = new long[size * size][];
+      for(int cell = 0; cell < byCell.length; cell++) {
+        long bit = 1L << cell;
+        int n = 0;
+        for(long line: all) {
+          if((line & bit) != 0) {
+            n++;
+          }
+        }
+        byCell[cell] = new long[n];
+        n = 0;
+        for(long line: all) {
+          if((line & bit) != 0) {
+            byCell[cell][n++] = line;
+          }
+        }
+      }
+    }
   }
 }
 
 /**
-* index_COORD
+* index_TTTORACLE
+* TTTOracle
+*
+* Perfect-play table for the standard 3x3 game, built once by solving
+* every reachable position. A position is its 9 cells as a base-3
+* number, cell row * 3 + col worth 3^cell, 0 empty, 1 X, 2 O. X moves
+* first, so the side to move follows from the counts.
+*
+* Only one position per symmetry class is stored: of the 8 rotations and
+* reflections of a board, the one with the smallest number. That leaves
+* 765 of the 5478 reachable positions, kept in an open addressing table of ints
+* and shorts. A lookup maps the board to its canonical form, probes the
+* table, and maps the stored move back, a fixed amount of work.
+*
+* An entry packs, for the side to move, the value with perfect play
+* (WIN, DRAW or LOSS), a best move, and the plies until the game ends.
+* Wins are taken as fast and losses as slowly as possible.
+*
+* Summary of methods:
+* public static TTTOracle get()
+* public static TTTOracle build()
+* public static boolean supports(TTT board)
+* public static int encode(TTT board)
+* public int lookup(int state)
+* public static int value(int entry)
+* public static int move(int entry)
+* public static int plies(int entry)
+* public static int play(int state, int cell)
+* public int size()
 */
-class Coord {
-  public int row = -1;
-  public int col = -1;
-  public char val = ' ';
-  public Coord(int row, int col) {
-    this.row = row;
-    this.col = col;
+class TTTOracle {
+  public static final int LOSS = -1;
+  public static final int DRAW = 0;
+  public static final int WIN = 1;
+
+  private static final int CELLS = 9;
+  private static final int [] POW3 = {1, 3, 9, 27, 81, 243, 729, 2187, 6561};
+  private static final int [][] LINES = {
+    {0, 1, 2}, {3, 4, 5}, {6, 7, 8}, {0, 3, 6}, {1, 4, 7}, {2, 5, 8},
+    {0, 4, 8}, {2, 4, 6}
+  };
+  // SYM[t][i]: cell of the board that lands on cell i under symmetry t
+  private static final int [][] SYM = new int[8][CELLS];
+  static {
+    for(int t = 0; t < 8; t++) {
+      for(int i = 0; i < CELLS; i++) {
+        int row = i / 3;
+        int col = i % 3;
+        if((t & 4) != 0) {
+          int swap = row;
+          row = col;
+          col = swap;
+        }
+        if((t & 1) != 0) {
+          row = 2 - row;
+        }
+        if((t & 2) != 0) {
+          col = 2 - col;
+        }
+        SYM[t][i] = row * 3 + col;
+      }
+    }
   }
-  public Coord(int row, int col, char val) {
-    this.row = row;
-    this.col = col;
-    this.val = val;
+  private static final int TABLE_SIZE = 2048;
+
+  private static class Holder {
+    static final TTTOracle INSTANCE = build();
   }
-}
 
-/**
-* index_CMD
-*/
-class CMD {
-  public static final String NOP = "nop";
-  public static final String START = "start";
-  public static final String PLAY = "play";
-  public static final String PUT = "put";
-  public static final String RESTART = "restart";
-  public static final String QUIT = "quit";
-  public static final String RESIGN = "resign";
-  public static final String STATUS = "status";
-  public static final String HELP = "help";
-  public static final int ERR = 0;
-  public static final int OK = 1;
-  public static final int OK_PUBLIC = 2;
-}
+  // canonical state + 1, 0 for an empty slot
+  private final int [] keys = new int[TABLE_SIZE];
+  private final short [] entries = new short[TABLE_SIZE];
+  private int size = 0;
 
-/**
-* index_COMMAND
-* Command
-* Summmary of methods:
-* public Command(String username, String channel)
-* public void setCommand(String command)
-* public void setCommand(String command, Coord coord)
-* public void setInvitee(String username)
-* public String getInvitee()
-* public String getUser()
-* public String getCommand()
-* public String getChannel()
-* public Coord getCoord()
-*/
-class Command {
-  String username = null;
-  String usernameDst = null;
-  String command = null;
-  String channel = null;
-  Coord coord = null;
-  
-  public Command(String username, String channel) {
-    this.username = username;
-    this.channel = channel;
+  private TTTOracle() {
   }
 
-  public void setCommand(String command) {
-    this.command = command;
+  /** The shared table, built on first use. */
+  public static TTTOracle get() {
+    return Holder.INSTANCE;
   }
-  public void setCommand(String command, Coord coord) {
-    this.command = command;
-    this.coord = coord;
+
+  /** Solve every position reachable from the empty board. */
+  public static TTTOracle build() {
+    TTTOracle oracle = new TTTOracle();
+    oracle.solve(new int[CELLS], 0);
+    return oracle;
   }
-  public void setInvitee(String username) {
-    usernameDst = username;
+
+  public static boolean supports(TTT board) {
+    return board.getSize() == 3 && board.getWinLength() == 3;
   }
-  public String getInvitee() {
-    return usernameDst;
+
+  /** board as a state. Only for boards where supports is true. */
+  public static int encode(TTT board) {
+    int state = 0;
+    for(int i = 0; i < CELLS; i++) {
+      char c = board.board[i / 3][i % 3];
+      state += ((c == 'X') ? 1 : (c == 'O') ? 2 : 0) * POW3[i];
+    }
+    return state;
   }
-  public String getUser() {
-    return username;
+
+  /** state after the side to move marks cell, which must be empty. */
+  public static int play(int state, int cell) {
+    return state + toMove(state) * POW3[cell];
   }
-  public String getCommand() {
-    return command;
+
+  private static int toMove(int state) {
+    int x = 0;
+    int o = 0;
+    for(int i = 0; i < CELLS; i++) {
+      int c = state / POW3[i] % 3;
+      x += (c == 1) ? 1 : 0;
+      o += (c == 2) ? 1 : 0;
+    }
+    return (x == o) ? 1 : 2;
   }
-  public String getChannel() {
-    return channel;
+
+  /**
+   * Entry for state with its move in state's orientation, or -1 if the
+   * position cannot come up in a game.
+   */
+  public int lookup(int state) {
+    int best = Integer.MAX_VALUE;
+    int bestSym = 0;
+    for(int t = 0; t < 8; t++) {
+      int s = transform(state, t);
+      if(s < best) {
+        best = s;
+        bestSym = t;
+      }
+    }
+    int slot = find(best);
+    if(keys[slot] == 0) {
+      return -1;
+    }
+    int entry = entries[slot];
+    int move = (entry >> 2 & 0xf) - 1;
+    if(move >= 0) {
+      move = SYM[bestSym][move];
+    }
+    return (entry & ~(0xf << 2)) | ((move + 1) << 2);
   }
-  public Coord getCoord() {
-    return coord;
+
+  public static int value(int entry) {
+    return (entry & 3) - 1;
   }
-}
 
-/**
-* index_TTTRESPONSE
-*/
-class TTTResponse {
-  public int status = CMD.ERR;
-  public String message = null;
-  public TTTResponse() {
+  /** Best cell for the side to move, -1 when the game is over. */
+  public static int move(int entry) {
+    return (entry >> 2 & 0xf) - 1;
   }
-  public TTTResponse(int status) {
-    this.status = status;
+
+  /** Plies until the game ends with perfect play. */
+  public static int plies(int entry) {
+    return entry >> 6 & 0xf;
   }
-  public TTTResponse(int status, String message) {
-    this.status = status;
-    this.message = message;
+
+  /** Positions stored, one per symmetry class. */
+  public int size() {
+    return size;
   }
-}
 
-/**
-* index_PROCESSOR
-* Processor processes incoming commands onto TTT.
-* 
-* Rules: One game per channel. So have a map of channel_name and game state.
-* 
-* Commands:
-* /ttt start @username
-* /ttt start
-* /ttt put row col
-* /ttt restart
-* /ttt quit
-* /ttt resign offer
-* /ttt resign accept
-* /ttt status
-* /ttt help
-* 
-* Summary of methods:
-* public Processor()
-* public StringProcess(Map<String,String> map)
-* private Command createCommand(Map<String,String> map)
-* private String executeCommand(Command command)
-* private isValueNullOrZero(String s)
-* private boolean validateKeys(Map<String,String> map)
-* private String executeCommandStart(Command command)
-* 
-*/
-class Processor {
-  private Memory memory = null;
+  private static int transform(int state, int t) {
+    int s = 0;
+    int [] sym = SYM[t];
+    for(int i = 0; i < CELLS; i++) {
+      s += state / POW3[sym[i]] % 3 * POW3[i];
+    }
+    return s;
+  }
 
-  public Processor() {
-    memory = new Memory();
+  private int find(int canonical) {
+    int slot = (canonical * 0x9E3779B1) >>> 21 & (TABLE_SIZE - 1);
+    while(keys[slot] != 0 && keys[slot] != canonical + 1) {
+      slot = (slot + 1) & (TABLE_SIZE - 1);
+    }
+    return slot;
   }
 
-  private void p(String f, Object ...o) {
-    String msg = String.format(f, o);
-    System.out.printf(msg);
+  /** Negamax over cells with player (0 X, 1 O) to move. Returns the entry. */
+  private int solve(int [] cells, int player) {
+    int state = 0;
+    for(int i = 0; i < CELLS; i++) {
+      state += cells[i] * POW3[i];
+    }
+    int known = lookup(state);
+    if(known >= 0) {
+      return known;
+    }
+    int entry;
+    int opponent = 2 - player;
+    boolean full = true;
+    for(int c: cells) {
+      full &= c != 0;
+    }
+    if(hasLine(cells, opponent)) {
+      entry = pack(LOSS, -1, 0);
+    }
+    else if(full) {
+      entry = pack(DRAW, -1, 0);
+    }
+    else {
+      int bestValue = LOSS - 1;
+      int bestPlies = 0;
+      int bestMove = -1;
+      for(int i = 0; i < CELLS; i++) {
+        if(cells[i] != 0) {
+          continue;
+        }
+        cells[i] = player + 1;
+        int child = solve(cells, 1 - player);
+        cells[i] = 0;
+        int value = -value(child);
+        int plies = plies(child) + 1;
+        if(value > bestValue || (value == bestValue && 
+          ((value > DRAW && plies < bestPlies) || 
+           (value < DRAW && plies > bestPlies))))
+        {
+          bestValue = value;
+          bestPlies = plies;
+          bestMove = i;
+        }
+      }
+      entry = pack(bestValue, bestMove, bestPlies);
+    }
+    store(state, entry);
+    return entry;
   }
 
-  public TTTResponse process(Map<String, String> map) {
-    if(TTTConfig.debug) {
-      p("process called\n");
+  private static boolean hasLine(int [] cells, int mark) {
+    for(int [] line: LINES) {
+      if(cells[line[0]] == mark && cells[line[1]] == mark 
+        && cells[line[2]] == mark)
+      {
+        return true;
+      }
     }
-    if(!validateKeys(map)) {
-      if(TTTConfig.debug) {
-          p("Processor validateKeys bad\n");
+    return false;
+  }
+
+  private static int pack(int value, int move, int plies) {
+    return (value + 1) | ((move + 1) << 2) | (plies << 6);
+  }
+
+  /** Store entry for state under its canonical form. */
+  private void store(int state, int entry) {
+    int best = Integer.MAX_VALUE;
+    int bestSym = 0;
+    for(int t = 0; t < 8; t++) {
+      int s = transform(state, t);
+      if(s < best) {
+        best = s;
+        bestSym = t;
       }
-      return null;
-    } 
-    Command cmd = createCommand(map);
-    if(cmd == null) {
-      if(TTTConfig.debug) {
-          p("Processor createCommand null\n");
+    }
+    int move = move(entry);
+    if(move >= 0) {
+      // the canonical cell that SYM[bestSym] takes back to move
+      for(int i = 0; i < CELLS; i++) {
+        if(SYM[bestSym][i] == move) {
+          move = i;
+          break;
+        }
       }
-      return null;
     }
-    return executeCommand(cmd);
+    int slot = find(best);
+    keys[slot] = best + 1;
+    entries[slot] = (short)pack(value(entry), move, plies(entry));
+    size++;
   }
+}
+
+/**
+* index_TTTBOT
+* TTTBot
+*
+* Computer opponent for `start bot`, for any board TTTBitBoard can
+* hold. A move is chosen by iterative deepening negamax with alpha-beta:
+* each pass searches one ply deeper than the last, and when the time
+* budget runs out the move from the last finished pass is played. The
+* level caps the depth, so easy and medium also miss things on purpose.
+*
+* Positions are hashed Zobrist style, a fixed random key per player and
+* cell xored in and out as moves are made and undone, plus a key for the
+* board shape. The transposition table is a pair of arrays allocated
+* once at 2^tableBits entries, so memory never grows with a game, and
+* its entries stay useful from one move and one game to the next. An
+* entry keeps its slot against a shallower one unless it is from an
+* older search.
+*
+* Only empty cells next to a mark are searched, which on large boards
+* leaves a handful of candidates per ply. The leaf evaluation sums the
+* lines still open to one side only, weighted 4^k by the k marks in them.
+*
+* A TTTBot is not thread safe. Processor keeps a fixed pool of them and
+* a move borrows one.
+*
+* Summary of methods:
+* public TTTBot(int tableBits)
+* public static String name(Level level)
+* public static Level levelOf(String player)
+* public int move(TTT board, Level level, long budgetMS)
+* public int getDepth()
+* public long getNodes()
+*/
+class TTTBot {
+  public static final String NAME = "bot";
+  static final int MAX_CELLS = TTTBitBoard.MAX_SIZE * TTTBitBoard.MAX_SIZE;
+  static final int WIN = 1 << 24;
+  // scores beyond this are wins found at some ply
+  static final int WIN_BOUND = WIN - 2 * MAX_CELLS;
+  private static final int INF = WIN + 1;
+  private static final int EXACT = 0;
+  private static final int LOWER = 1;
+  private static final int UPPER = 2;
 
-  private Command createCommand(Map<String, String> map) {
-    if(TTTConfig.debug) {
-      p("createCommand called\n");
+  enum Level {
+    EASY("easy", 1),
+    MEDIUM("medium", 3),
+    HARD("hard", MAX_CELLS);
+
+    final String word;
+    final int maxDepth;
+
+    Level(String word, int maxDepth) {
+      this.word = word;
+      this.maxDepth = maxDepth;
     }
-    String scmd = map.get("command");
-    String suser = map.get("user_name");
-    String schannel = map.get("channel_name");
-    String stext = map.get("text"); 
 
-    if(!"/ttt".equals(scmd)) {
-      if(TTTConfig.debug) {
-          p("scmd %s is not /ttt\n", scmd);
+    /** The level spelled by s[start,end), or null if there is none. */
+    static Level parse(String s, int start, int end) {
+      for(Level level: values()) {
+        if(end - start == level.word.length() && 
+           s.regionMatches(start, level.word, 0, end - start)) {
+          return level;
+        }
       }
       return null;
     }
+  }
 
-    String [] sary = stext.split("\\s+");
-    int szary = sary.length;
-
-    if(szary == 0 || szary > 4) {
-      return null;
+  private static final long [][] ZOBRIST = new long[2][MAX_CELLS];
+  private static final long [] SHAPE = 
+    new long[(TTTBitBoard.MAX_SIZE + 1) * (TTTBitBoard.MAX_SIZE + 1)];
+  private static final Map<Integer, long []> neighborTables = 
+    new ConcurrentHashMap<>();
+  static {
+    // fixed seed, hashes are only compared within this process
+    Random random = new Random(0x7474746274L);
+    for(int p = 0; p < 2; p++) {
+      for(int cell = 0; cell < MAX_CELLS; cell++) {
+        ZOBRIST[p][cell] = random.nextLong();
+      }
     }
+    for(int i = 0; i < SHAPE.length; i++) {
+      SHAPE[i] = random.nextLong();
+    }
+  }
 
-    Command command = new Command(suser, schannel);
+  // transposition table: key, and score | depth | flag | move | age
+  private final long [] keys;
+  private final long [] data;
+  private final int mask;
+  private int age = 0;
 
-    if     (CMD.START.equals(sary[0])) {
-      if(szary > 2) {
+  // search state, set up by move
+  private int size;
+  private int cells;
+  private TTTBitBoard.WinLines winLines;
+  private long [] neighbors;
+  private final long [] marks = new long[2];
+  private long hash;
+  private final int [] history = new int[MAX_CELLS];
+  private final int [][] moveBuf = new int[MAX_CELLS + 1][MAX_CELLS];
+  private final int [][] orderBuf = new int[MAX_CELLS + 1][MAX_CELLS];
+  private long deadlineNS;
+  private boolean canStop;
+  private boolean stopped;
+  private long nodes;
+  private int depth;
+  private int rootMove;
+
+  /** Table of 2^tableBits entries, 16 bytes each. */
+  public TTTBot(int tableBits) {
+    keys = new long[1 << tableBits];
+    data = new long[1 << tableBits];
+    mask = (1 << tableBits) - 1;
+  }
+
+  /** Player name for a bot at level, e.g. bot(hard). */
+  public static String name(Level level) {
+    return NAME + "(" + level.word + ")";
+  }
+
+  /** Level of the bot called player, or null if player is a person. */
+  public static Level levelOf(String player) {
+    if(player == null || !player.startsWith(NAME + "(") || 
+       !player.endsWith(")")) {
+      return null;
+    }
+    return Level.parse(player, NAME.length() + 1, player.length() - 1);
+  }
+
+  /**
+   * Cell row * size + col for the side to move on board, or -1 if the
+   * game is over. Searches at least one ply whatever the budget.
+   */
+  public int move(TTT board, Level level, long budgetMS) {
+    if(board.getIsDone()) {
+      return -1;
+    }
+    setup(board);
+    deadlineNS = System.nanoTime() + budgetMS * 1000000L;
+    stopped = false;
+    nodes = 0;
+    depth = 0;
+    age = (age + 1) & 0xff;
+    Arrays.fill(history, 0);
+    int player = board.isPlayer1() ? 0 : 1;
+    int empty = cells - Long.bitCount(marks[0] | marks[1]);
+    int best = -1;
+    for(int d = 1; d <= Math.min(level.maxDepth, empty); d++) {
+      canStop = d > 1;
+      int score = search(player, d, -INF, INF, 0);
+      if(stopped) {
+        break;
+      }
+      best = rootMove;
+      depth = d;
+      if(score >= WIN_BOUND || score <= -WIN_BOUND) {
+        // the result is decided, deeper passes only repeat it
+        break;
+      }
+    }
+    return best;
+  }
+
+  /** Depth of the last finished pass of the last move. */
+  public int getDepth() {
+    return depth;
+  }
+
+  /** Positions visited by the last move. */
+  public long getNodes() {
+    return nodes;
+  }
+
+  private void setup(TTT board) {
+    size = board.getSize();
+    cells = size * size;
+    winLines = TTTBitBoard.winLines(size, board.getWinLength());
+    neighbors = neighborTables.computeIfAbsent(size, TTTBot::neighborTable);
+    hash = SHAPE[size * (TTTBitBoard.MAX_SIZE + 1) + board.getWinLength()];
+    for(int p = 0; p < 2; p++) {
+      marks[p] = board.bits.getMarks(p);
+      for(long m = marks[p]; m != 0; m &= m - 1) {
+        hash ^= ZOBRIST[p][Long.numberOfTrailingZeros(m)];
+      }
+    }
+  }
+
+  /** Mask of the up to 8 cells around each cell. */
+  private static long [] neighborTable(int size) {
+    long [] table = new long[size * size];
+    for(int cell = 0; cell < table.length; cell++) {
+      int row = cell / size;
+      int col = cell % size;
+      for(int r = Math.max(0, row - 1); r <= Math.min(size - 1, row + 1); r++) {
+        for(int c = Math.max(0, col - 1); c <= Math.min(size - 1, col + 1); c++) {
+          if(r != row || c != col) {
+            table[cell] |= 1L << (r * size + c);
+          }
+        }
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Negamax value of the position for player, to move, searched depth
+   * plies. Wins score WIN less the ply they happen on, so a nearer win
+   * is worth more and a further loss less.
+   */
+  private int search(int player, int depth, int alpha, int beta, int ply) {
+    if((++nodes & 1023) == 0 && canStop && System.nanoTime() > deadlineNS) {
+      stopped = true;
+    }
+    if(stopped) {
+      return 0;
+    }
+    int alphaIn = alpha;
+    int slot = (int)hash & mask;
+    int ttMove = -1;
+    if(keys[slot] == hash) {
+      long d = data[slot];
+      ttMove = (int)(d >>> 42 & 0x7f) - 1;
+      int score = fromTable((int)d, ply);
+      int flag = (int)(d >>> 40) & 3;
+      if(ply > 0 && (int)(d >>> 32 & 0xff) >= depth && 
+         (flag == EXACT || (flag == LOWER && score >= beta) ||
+          (flag == UPPER && score <= alpha))) {
+        return score;
+      }
+    }
+    if(depth == 0) {
+      return evaluate(player);
+    }
+    int n = candidates(ply, ttMove);
+    int best = -INF;
+    int bestMove = -1;
+    for(int i = 0; i < n; i++) {
+      int cell = moveBuf[ply][i];
+      long bit = 1L << cell;
+      marks[player] |= bit;
+      hash ^= ZOBRIST[player][cell];
+      int score;
+      if(isWin(player, cell)) {
+        score = WIN - ply - 1;
+      }
+      else if(Long.bitCount(marks[0] | marks[1]) == cells) {
+        score = 0;
+      }
+      else {
+        score = -search(1 - player, depth - 1, -beta, -alpha, ply + 1);
+      }
+      marks[player] &= ~bit;
+      hash ^= ZOBRIST[player][cell];
+      if(stopped) {
+        return 0;
+      }
+      if(score > best) {
+        best = score;
+        bestMove = cell;
+        if(ply == 0) {
+          rootMove = cell;
+        }
+      }
+      if(score > alpha) {
+        alpha = score;
+      }
+      if(alpha >= beta) {
+        history[cell] += depth * depth;
+        break;
+      }
+    }
+    int flag = (best <= alphaIn) ? UPPER : (best >= beta) ? LOWER : EXACT;
+    store(slot, toTable(best, ply), depth, flag, bestMove);
+    return best;
+  }
+
+  private boolean isWin(int player, int cell) {
+    long m = marks[player];
+    for(long line: winLines.byCell[cell]) {
+      if((m & line) == line) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Open lines for X less open lines for O, as seen by player. */
+  private int evaluate(int player) {
+    int score = 0;
+    for(long line: winLines.all) {
+      int x = Long.bitCount(marks[0] & line);
+      int o = Long.bitCount(marks[1] & line);
+      if(o == 0) {
+        score += (1 << (2 * x)) - 1;
+      }
+      else if(x == 0) {
+        score -= (1 << (2 * o)) - 1;
+      }
+    }
+    return (player == 0) ? score : -score;
+  }
+
+  /**
+   * Fill moveBuf[ply] with the empty cells next to a mark, the centre
+   * on an empty board, best first: the table's move, then by history.
+   */
+  private int candidates(int ply, int ttMove) {
+    long occupied = marks[0] | marks[1];
+    long cand = 0;
+    if(occupied == 0) {
+      cand = 1L << ((size / 2) * size + size / 2);
+    }
+    for(long m = occupied; m != 0; m &= m - 1) {
+      cand |= neighbors[Long.numberOfTrailingZeros(m)];
+    }
+    cand &= ~occupied;
+    int [] moves = moveBuf[ply];
+    int [] order = orderBuf[ply];
+    int n = 0;
+    for(; cand != 0; cand &= cand - 1) {
+      int cell = Long.numberOfTrailingZeros(cand);
+      int key = (cell == ttMove) ? Integer.MAX_VALUE : history[cell];
+      int i = n++;
+      for(; i > 0 && order[i - 1] < key; i--) {
+        moves[i] = moves[i - 1];
+        order[i] = order[i - 1];
+      }
+      moves[i] = cell;
+      order[i] = key;
+    }
+    return n;
+  }
+
+  /** Keep the deeper entry, unless the one in the slot is stale. */
+  private void store(int slot, int score, int depth, int flag, int move) {
+    long old = data[slot];
+    if(keys[slot] != hash && (int)(old >>> 49 & 0xff) == age && 
+       (int)(old >>> 32 & 0xff) > depth) {
+      return;
+    }
+    keys[slot] = hash;
+    data[slot] = (score & 0xffffffffL) | ((long)depth << 32) | 
+      ((long)flag << 40) | ((long)(move + 1) << 42) | ((long)age << 49);
+  }
+
+  // win scores are stored relative to the position, not the root
+  private static int toTable(int score, int ply) {
+    return (score >= WIN_BOUND) ? score + ply : 
+      (score <= -WIN_BOUND) ? score - ply : score;
+  }
+
+  private static int fromTable(int score, int ply) {
+    return (score >= WIN_BOUND) ? score - ply : 
+      (score <= -WIN_BOUND) ? score + ply : score;
+  }
+}
+
+/**
+* index_TTTRECORD
+* TTTRecord
+*
+* Compact record of a finished game, kept in history instead of the TTT
+* itself. Moves are cell indexes row * size + col, one byte each, so a
+* 3x3 game is at most 9 bytes of moves. For a draw winnerUser and
+* loserUser are player1 and player2 and isDraw is set.
+*
+* Summary of methods:
+* public TTTRecord(String channel, TTT board)
+*/
+class TTTRecord {
+  public String winnerUser = null;
+  public String loserUser = null;
+  public String channel = null;
+  public boolean isDraw = false;
+  public byte size = 3;
+  public byte [] moves = null;
+  public long timeEndMS = 0;
+
+  public TTTRecord() {
+  }
+
+  public TTTRecord(String channel, TTT board) {
+    this.channel = channel.intern();
+    String player1 = intern(board.getPlayer1());
+    String player2 = intern(board.getPlayer2());
+    String winner = board.getWinner();
+    if(winner == null) {
+      isDraw = true;
+      winnerUser = player1;
+      loserUser = player2;
+    }
+    else {
+      winnerUser = intern(winner);
+      loserUser = winner.equals(player1) ? player2 : player1;
+    }
+    size = (byte)board.getSize();
+    moves = board.getMoves();
+    timeEndMS = board.getTimeLastMS();
+  }
+
+  private static String intern(String s) {
+    return (s == null) ? null : s.intern();
+  }
+}
+
+/**
+* index_TTTHISTORY
+* TTTHistory
+*
+* Bounded store of finished games. Each channel keeps at most 
+* perChannelCap records, oldest first, and records older than maxAgeMS
+* are dropped when the channel is touched. Across channels at most
+* globalCap records are kept; when over, the oldest records of the
+* least recently used channel go first.
+*
+* Summary of methods:
+* public TTTHistory(int perChannelCap, int globalCap, long maxAgeMS)
+* public void add(TTTRecord record)
+* public List<TTTRecord> get(String channel)
+* public int size()
+* public List<TTTRecord> all()
+* public void clear()
+*/
+class TTTHistory {
+  private final int perChannelCap;
+  private final int globalCap;
+  private final long maxAgeMS;
+  // access ordered, so iteration starts at the least recently used
+  private final LinkedHashMap<String, ArrayDeque<TTTRecord>> channels = 
+    new LinkedHashMap<>(16, 0.75f, true);
+  private int total = 0;
+
+  public TTTHistory(int perChannelCap, int globalCap, long maxAgeMS) {
+    this.perChannelCap = perChannelCap;
+    this.globalCap = globalCap;
+    this.maxAgeMS = maxAgeMS;
+  }
+
+  public synchronized void add(TTTRecord record) {
+    ArrayDeque<TTTRecord> deque = channels.get(record.channel);
+    if(deque == null) {
+      deque = new ArrayDeque<>();
+      channels.put(record.channel, deque);
+    }
+    deque.addLast(record);
+    total++;
+    if(deque.size() > perChannelCap) {
+      deque.removeFirst();
+      total--;
+    }
+    evictAged(record.channel, deque, System.currentTimeMillis());
+    evictGlobal();
+  }
+
+  /** Snapshot of the channel's records, oldest first. */
+  public synchronized List<TTTRecord> get(String channel) {
+    ArrayDeque<TTTRecord> deque = channels.get(channel);
+    if(deque == null) {
+      return new ArrayList<>();
+    }
+    evictAged(channel, deque, System.currentTimeMillis());
+    return new ArrayList<>(deque);
+  }
+
+  public synchronized int size() {
+    return total;
+  }
+
+  /** Every record, least recently used channel first. */
+  public synchronized List<TTTRecord> all() {
+    List<TTTRecord> list = new ArrayList<>(total);
+    for(ArrayDeque<TTTRecord> deque: channels.values()) {
+      list.addAll(deque);
+    }
+    return list;
+  }
+
+  public synchronized void clear() {
+    channels.clear();
+    total = 0;
+  }
+
+  private void evictAged(String channel, ArrayDeque<TTTRecord> deque, long now) {
+    TTTRecord first;
+    while((first = deque.peekFirst()) != null && 
+          now - first.timeEndMS > maxAgeMS) {
+      deque.removeFirst();
+      total--;
+    }
+    if(deque.isEmpty()) {
+      channels.remove(channel);
+    }
+  }
+
+  private void evictGlobal() {
+    Iterator<Map.Entry<String, ArrayDeque<TTTRecord>>> it = 
+      channels.entrySet().iterator();
+    while(total > globalCap && it.hasNext()) {
+      ArrayDeque<TTTRecord> deque = it.next().getValue();
+      while(total > globalCap && !deque.isEmpty()) {
+        deque.removeFirst();
+        total--;
+      }
+      if(deque.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+}
+
+/**
+* index_TTTUSERSTATS
+* TTTUserStats
+*
+* Running totals for one user, globally or in one channel. Updated and
+* read under its own monitor, since one user can finish games in two
+* channels at once.
+*/
+class TTTUserStats {
+  public String user = null;
+  public List<TTTRecord> history = new ArrayList<>();
+  public int totalPlayed = 0;
+  public int totalWin = 0;
+  public int totalLoss = 0;
+  public int totalDraw = 0;
+
+  public TTTUserStats() {
+  }
+
+  public TTTUserStats(String user) {
+    this.user = user;
+  }
+}
+
+/**
+* index_TTTLEADERBOARD
+* TTTLeaderboard
+*
+* The k best users by wins, then draws, then name. Standings sit in a
+* TreeSet, so an update is O(log k), and users outside the top k are not
+* kept at all. That is exact because wins and draws never go down: a
+* user who drops out can only get back in by passing the last entry,
+* which update checks.
+*
+* Summary of methods:
+* public TTTLeaderboard(int k)
+* public void update(TTTUserStats stats)
+* public boolean contains(String user)
+* public List<Standing> top()
+*/
+class TTTLeaderboard {
+  /** A user's totals when they last changed. */
+  static class Standing {
+    final String user;
+    final int wins;
+    final int draws;
+    final int losses;
+
+    Standing(String user, int wins, int draws, int losses) {
+      this.user = user;
+      this.wins = wins;
+      this.draws = draws;
+      this.losses = losses;
+    }
+  }
+
+  private static final Comparator<Standing> ORDER = (a, b) -> {
+    if(a.wins != b.wins) {
+      return Integer.compare(b.wins, a.wins);
+    }
+    if(a.draws != b.draws) {
+      return Integer.compare(b.draws, a.draws);
+    }
+    return a.user.compareTo(b.user);
+  };
+
+  private final int k;
+  private final TreeSet<Standing> ranked = new TreeSet<>(ORDER);
+  private final Map<String, Standing> members = new HashMap<>();
+
+  public TTTLeaderboard(int k) {
+    this.k = k;
+  }
+
+  /** Caller holds stats' monitor, so its totals are consistent. */
+  public synchronized void update(TTTUserStats stats) {
+    Standing standing = new Standing(stats.user, stats.totalWin, 
+      stats.totalDraw, stats.totalLoss);
+    Standing old = members.remove(stats.user);
+    if(old != null) {
+      ranked.remove(old);
+    }
+    else if(ranked.size() >= k && ORDER.compare(standing, ranked.last()) >= 0) {
+      return;
+    }
+    ranked.add(standing);
+    members.put(stats.user, standing);
+    if(ranked.size() > k) {
+      members.remove(ranked.pollLast().user);
+    }
+  }
+
+  public synchronized boolean contains(String user) {
+    return members.containsKey(user);
+  }
+
+  /** Best first. */
+  public synchronized List<Standing> top() {
+    return new ArrayList<>(ranked);
+  }
+}
+
+/**
+* index_TTTSTATS
+* TTTStats
+*
+* Per-user totals and leaderboards, updated once per finished game, so
+* stats and leaderboard answers are a map lookup or a copy of k entries
+* and never scan history. Totals are kept globally and per channel, each
+* with its own top k.
+*
+* Totals are bounded like TTTHistory: past maxUsers users, the least
+* recently active user outside the top k is forgotten, and the same per
+* channel past maxChannelUsers. Past maxChannels channels, the least
+* recently active channel loses its totals and its top k. A forgotten
+* user who plays again starts from zero.
+*
+* Summary of methods:
+* public TTTStats(int k, int maxUsers, int maxChannels, int maxChannelUsers)
+* public void record(TTTRecord record)
+* public TTTUserStats get(String user)
+* public TTTUserStats get(String channel, String user)
+* public List<TTTLeaderboard.Standing> top()
+* public List<TTTLeaderboard.Standing> top(String channel)
+* public void clear()
+*/
+class TTTStats {
+  /** Totals and top k of one channel. */
+  private static class Channel {
+    final LinkedHashMap<String, TTTUserStats> users = 
+      new LinkedHashMap<>(16, 0.75f, true);
+    final TTTLeaderboard board;
+
+    Channel(int k) {
+      board = new TTTLeaderboard(k);
+    }
+  }
+
+  private final int k;
+  private final int maxUsers;
+  private final int maxChannels;
+  private final int maxChannelUsers;
+  // access ordered, so iteration starts at the least recently active
+  private final LinkedHashMap<String, TTTUserStats> users = 
+    new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, Channel> channels = 
+    new LinkedHashMap<>(16, 0.75f, true);
+  private volatile TTTLeaderboard global;
+
+  public TTTStats(int k, int maxUsers, int maxChannels, int maxChannelUsers) {
+    this.k = k;
+    this.maxUsers = maxUsers;
+    this.maxChannels = maxChannels;
+    this.maxChannelUsers = maxChannelUsers;
+    global = new TTTLeaderboard(k);
+  }
+
+  /** Count a finished game for both of its players. */
+  public void record(TTTRecord record) {
+    if(record.winnerUser == null || record.loserUser == null) {
+      return;
+    }
+    TTTLeaderboard globalBoard;
+    TTTLeaderboard channelBoard;
+    TTTUserStats winner;
+    TTTUserStats loser;
+    TTTUserStats winnerHere;
+    TTTUserStats loserHere;
+    synchronized(this) {
+      Channel here = channels.get(record.channel);
+      if(here == null) {
+        here = new Channel(k);
+        channels.put(record.channel, here);
+        Iterator<Channel> it = channels.values().iterator();
+        while(channels.size() > maxChannels && it.hasNext()) {
+          it.next();
+          it.remove();
+        }
+      }
+      globalBoard = global;
+      channelBoard = here.board;
+      winner = user(users, globalBoard, record.winnerUser, maxUsers);
+      loser = user(users, globalBoard, record.loserUser, maxUsers);
+      winnerHere = user(here.users, channelBoard, record.winnerUser, 
+        maxChannelUsers);
+      loserHere = user(here.users, channelBoard, record.loserUser, 
+        maxChannelUsers);
+    }
+    add(globalBoard, winner, record, true);
+    add(globalBoard, loser, record, false);
+    add(channelBoard, winnerHere, record, true);
+    add(channelBoard, loserHere, record, false);
+  }
+
+  /** user's totals in map, forgetting the least recently active past cap. */
+  private static TTTUserStats user(LinkedHashMap<String, TTTUserStats> map,
+    TTTLeaderboard board, String user, int cap)
+  {
+    TTTUserStats stats = map.get(user);
+    if(stats == null) {
+      stats = new TTTUserStats(user);
+      map.put(user, stats);
+      Iterator<TTTUserStats> it = map.values().iterator();
+      while(map.size() > cap && it.hasNext()) {
+        // ranked users stay, so the top k remains exact
+        if(!board.contains(it.next().user)) {
+          it.remove();
+        }
+      }
+    }
+    return stats;
+  }
+
+  private static void add(TTTLeaderboard board, TTTUserStats stats, 
+    TTTRecord record, boolean isWinner)
+  {
+    synchronized(stats) {
+      stats.totalPlayed++;
+      if(record.isDraw) {
+        stats.totalDraw++;
+      }
+      else if(isWinner) {
+        stats.totalWin++;
+      }
+      else {
+        stats.totalLoss++;
+      }
+      board.update(stats);
+    }
+  }
+
+  public synchronized TTTUserStats get(String user) {
+    return users.get(user);
+  }
+
+  public synchronized TTTUserStats get(String channel, String user) {
+    Channel here = channels.get(channel);
+    return (here == null) ? null : here.users.get(user);
+  }
+
+  public List<TTTLeaderboard.Standing> top() {
+    return global.top();
+  }
+
+  public List<TTTLeaderboard.Standing> top(String channel) {
+    Channel here;
+    synchronized(this) {
+      here = channels.get(channel);
+    }
+    return (here == null) ? Collections.emptyList() : here.board.top();
+  }
+
+  public synchronized void clear() {
+    users.clear();
+    channels.clear();
+    global = new TTTLeaderboard(k);
+  }
+}
+
+/**
+* index_MEMORY
+* Memory
+*
+* Channel store shared by every request thread. The maps are concurrent,
+* and each channel hashes onto one of a fixed set of lock stripes. A
+* command holds its channel's stripe for the whole read-modify-write, so
+* moves on one channel are linearizable while different channels rarely
+* contend.
+*
+* After a restart, channels that are still only in the mapped snapshot
+* are moved into the maps by current() the first time they are used.
+* Stats are not stored, so rebuildStats counts them again from what was
+* recovered, reading the records of channels still in the snapshot
+* without loading them.
+*
+* Summary of methods:
+* public Memory() 
+* public Memory(int numStripes) 
+* public ReentrantLock getLock(String channel)
+* public clearAll()
+* public boolean updateBoard(String channel, TTT board)
+* public boolean setBoard(String channel, TTT board)
+* public boolean isBoardActive(String channel)
+* public TTT getBoard(String channel)
+* boolean addHistory(String channel, TTT board)
+* void archive(TTTRecord record)
+* public void recordResult(String channel, TTT board)
+* public TTTStats getStats()
+* public List<TTTRecord> getHistory(String channel)
+* public int getHistorySize()
+* public int getBoardCount()
+* public void setReaper(TTTReaper reaper)
+* public void setJournal(TTTJournal journal)
+* public void setSnapshot(TTTSnapshot snapshot)
+* TTT current(String channel)
+* void scheduleReaper(String channel, TTT board)
+* void scheduleReaper(String channel, long lastMS)
+* public long commit(String channel)
+* public void invalidate(String channel)
+* public void shutdown()
+* public void awaitDurable(long seq)
+* public void replayBoard(String channel, TTT board)
+* public void replayClear(String channel)
+* public void restoreHistory(TTTRecord record)
+* public void rebuildStats()
+* public List<TTTRecord> getAllHistory()
+* public long expireIfIdle(String channel, long nowMS, long idleMS)
+*/
+class Memory {
+  Map<String, TTT> mapCurrent = new ConcurrentHashMap<>();
+  TTTHistory history = new TTTHistory(TTTConfig.historyPerChannel,
+    TTTConfig.historyGlobal, TTTConfig.historyMaxAgeMS);
+  TTTStats stats = new TTTStats(TTTConfig.leaderboardSize, 
+    TTTConfig.statsUsers, TTTConfig.statsChannels, 
+    TTTConfig.statsChannelUsers);
+  private final ReentrantLock [] locks;
+  private final int stripeMask;
+  private TTTReaper reaper = null;
+  private TTTJournal journal = null;
+  // boards and history still on disk, loaded per channel on first use
+  private volatile TTTSnapshot snapshot = null;
+
+  public Memory() {
+    this(TTTConfig.numLockStripes);
+  }
+
+  /** numStripes is rounded up to a power of 2. */
+  public Memory(int numStripes) {
+    int n = 1;
+    while(n < numStripes) {
+      n <<= 1;
+    }
+    locks = new ReentrantLock[n];
+    for(int i = 0; i < n; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    stripeMask = n - 1;
+  }
+
+  /** Lock guarding every board and history mutation for channel. */
+  public ReentrantLock getLock(String channel) {
+    int h = channel.hashCode();
+    h ^= (h >>> 16);
+    return locks[h & stripeMask];
+  }
+
+  public void clearAll() {
+    snapshot = null;
+    history.clear();
+    stats.clear();
+    mapCurrent.clear();
+  }
+
+  public void clearAllActive() {
+    TTTSnapshot s = snapshot;
+    if(s != null) {
+      s.claimAll();
+    }
+    mapCurrent.clear();
+  }
+
+  public void clearBoard(String channel) {
+    current(channel);
+    mapCurrent.remove(channel);
+  }
+
+  /** Serve channels missing from memory out of snapshot. */
+  public void setSnapshot(TTTSnapshot snapshot) {
+    this.snapshot = snapshot;
+  }
+
+  TTTSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Channel's board, first loading it and its history from the mapped
+   * snapshot if this is the first time the channel is used. Caller must
+   * hold getLock(channel).
+   */
+  TTT current(String channel) {
+    TTT ttt = mapCurrent.get(channel);
+    TTTSnapshot s = snapshot;
+    if(ttt != null || s == null) {
+      return ttt;
+    }
+    int entry = s.find(channel);
+    if(entry < 0 || !s.claim(entry)) {
+      return null;
+    }
+    if(!s.verify(entry)) {
+      TTTLog.warning("snapshot entry for %s is corrupt, dropped", channel);
+      return null;
+    }
+    // already counted in the stats by rebuildStats
+    for(TTTRecord record: s.getRecords(entry)) {
+      history.add(record);
+    }
+    ttt = s.getBoard(entry);
+    if(ttt != null) {
+      mapCurrent.put(channel, ttt);
+      scheduleReaper(channel, ttt);
+    }
+    return ttt;
+  }
+
+  /** Mutations committed after this are appended to journal. */
+  public void setJournal(TTTJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Append channel's current board, or its removal, to the journal.
+   * Caller must hold getLock(channel), so records for a channel are
+   * appended in the order the changes were made. Returns the sequence
+   * to pass to awaitDurable, or -1 if there is no journal.
+   */
+  public long commit(String channel) {
+    if(journal == null) {
+      return -1;
+    }
+    TTT ttt = current(channel);
+    if(ttt == null) {
+      return journal.appendClear(channel);
+    }
+    return journal.appendBoard(channel, ttt);
+  }
+
+  /**
+   * Drop what is held for channel after commit failed, so the command
+   * can be retried on fresh state. Boards held only here never fail
+   * to commit.
+   */
+  public void invalidate(String channel) {
+  }
+
+  /** Stop background work. Nothing to do for the in-process store. */
+  public void shutdown() {
+  }
+
+  /** Wait until seq from commit is on disk. Call without the lock. */
+  public void awaitDurable(long seq) {
+    if(journal != null && seq >= 0) {
+      journal.awaitDurable(seq);
+    }
+  }
+
+  /**
+   * Replay a journaled board image. An image of the same game replaces
+   * the board. An image of a new game first archives the finished game
+   * it replaced, as setBoard did. Replaying an image twice is harmless.
+   */
+  public void replayBoard(String channel, TTT board) {
+    TTT ttt = current(channel);
+    if(ttt != null && ttt.getGameId() != board.getGameId()) {
+      addHistory(channel, ttt);
+    }
+    mapCurrent.put(channel, board);
+    scheduleReaper(channel, board);
+  }
+
+  /** Replay a journaled removal, archiving the board if it finished. */
+  public void replayClear(String channel) {
+    current(channel);
+    TTT ttt = mapCurrent.remove(channel);
+    if(ttt != null) {
+      addHistory(channel, ttt);
+    }
+  }
+
+  public void restoreHistory(TTTRecord record) {
+    history.add(record);
+    stats.record(record);
+  }
+
+  /**
+   * Count every finished game again, after recovery replayed boards and
+   * history: those in memory, and those of channels still only in the
+   * snapshot, which stay unloaded. Reads every snapshot record once.
+   */
+  public void rebuildStats() {
+    stats.clear();
+    for(TTTRecord record: history.all()) {
+      stats.record(record);
+    }
+    for(Map.Entry<String, TTT> e: mapCurrent.entrySet()) {
+      if(e.getValue().getIsDone()) {
+        stats.record(new TTTRecord(e.getKey(), e.getValue()));
+      }
+    }
+    TTTSnapshot s = snapshot;
+    if(s == null) {
+      return;
+    }
+    for(int entry = 0; entry < s.getNumEntries(); entry++) {
+      // a corrupt entry is dropped by current() too
+      if(s.isClaimed(entry) || !s.verify(entry)) {
+        continue;
+      }
+      for(TTTRecord record: s.getRecords(entry)) {
+        stats.record(record);
+      }
+      if(s.isDone(entry)) {
+        // finished but not archived yet, so not among the records
+        stats.record(new TTTRecord(s.getChannel(entry), s.getBoard(entry)));
+      }
+    }
+  }
+
+  public List<TTTRecord> getAllHistory() {
+    return history.all();
+  }
+
+  void scheduleReaper(String channel, TTT board) {
+    scheduleReaper(channel, board.getTimeLastMS());
+  }
+
+  /** Have reaper call expireIfIdle for channel once idle since lastMS. */
+  void scheduleReaper(String channel, long lastMS) {
+    if(reaper != null) {
+      reaper.schedule(channel, lastMS + reaper.getIdleMS());
+    }
+  }
+
+  /** Boards set after this get handed to reaper for idle expiry. */
+  public void setReaper(TTTReaper reaper) {
+    this.reaper = reaper;
+  }
+
+  /**
+   * Remove channel's board if it has been idle for idleMS, archiving
+   * it to history if it finished. Returns the time the board becomes
+   * idle if it is still live, or -1 if there is no board anymore.
+   */
+  public long expireIfIdle(String channel, long nowMS, long idleMS) {
+    ReentrantLock lock = getLock(channel);
+    lock.lock();
+    try {
+      TTT ttt = mapCurrent.get(channel);
+      if(ttt == null) {
+        return -1;
+      }
+      long deadlineMS = ttt.getTimeLastMS() + idleMS;
+      if(nowMS < deadlineMS) {
+        return deadlineMS;
+      }
+      addHistory(channel, ttt);
+      mapCurrent.remove(channel);
+      if(journal != null) {
+        journal.appendClear(channel);
+      }
+      return -1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void clearChannelAll(String channel) {
+  }
+
+  /** update state of board, must be same board as before. */
+  public boolean updateBoard(String channel, TTT board) {
+    TTT ttt = mapCurrent.get(channel);
+    if(board != ttt) {
+      return false;
+    }
+    return true;
+  }
+
+  /** 
+   * Set a new board, previous board must be done first. 
+   * Caller must hold getLock(channel).
+   */
+  public boolean setBoard(String channel, TTT board) {
+    if(isBoardActive(channel)) {
+      return false;
+    }
+    TTT ttt = current(channel);
+    if(ttt != null) {
+      addHistory(channel, ttt);
+    }
+    mapCurrent.put(channel, board);
+    scheduleReaper(channel, board);
+    return true;
+  }
+
+  public boolean isBoardActive(String channel) {
+    TTT ttt = current(channel);
+    if(ttt == null) {
+      return false;
+    }
+    return (!ttt.getIsDone());
+  }
+
+  public TTT getBoard(String channel) {
+    return current(channel);
+  }
+
+  boolean addHistory(String channel, TTT board) {
+    if(board == null || (!board.getIsDone())) {
+      return false;
+    }
+    archive(new TTTRecord(channel, board));
+    return true;
+  }
+
+  /** Keep a finished game. */
+  void archive(TTTRecord record) {
+    history.add(record);
+  }
+
+  /**
+   * Count channel's board, which just finished, in the stats. Caller
+   * must hold getLock(channel).
+   */
+  public void recordResult(String channel, TTT board) {
+    stats.record(new TTTRecord(channel, board));
+  }
+
+  public TTTStats getStats() {
+    return stats;
+  }
+
+  public List<TTTRecord> getHistory(String channel) {
+    current(channel);
+    return history.get(channel);
+  }
+
+  /** Records in memory plus those still only in the snapshot. */
+  public int getHistorySize() {
+    TTTSnapshot s = snapshot;
+    return history.size() + ((s == null) ? 0 : s.getUnclaimedRecords());
+  }
+
+  /** Boards in memory plus those still only in the snapshot. */
+  public int getBoardCount() {
+    TTTSnapshot s = snapshot;
+    return mapCurrent.size() + ((s == null) ? 0 : s.getUnclaimedBoards());
+  }
+}
+
+/**
+* index_DATASTOREMEMORY
+* DatastoreMemory
+*
+* Memory backed by Datastore, so every instance sees the same game for
+* a channel. Each board is one TTTBoard entity keyed by channel, holding
+* the encoded board and a version that every commit increments. A
+* cleared board keeps its entity with no board, so versions never go
+* back.
+*
+* Boards read from Datastore stay in mapCurrent as a near-cache, and
+* are served from there for nearCacheMS before the version is checked
+* again, so status polling mostly stays local. A move is optimistic: it
+* runs on the cached board and commit writes it in a transaction only if
+* the stored version is still the one the board was read at. Otherwise
+* commit throws ConcurrentModificationException and Processor reruns the
+* command on a fresh read. A command that left the encoded board as it
+* was read, such as a rejected move, only has its version checked.
+*
+* With a MemcacheService, a near-cache miss reads memcache before
+* Datastore. The cached value is the board's version followed by the
+* encoded board, and a Datastore read fills it in if nobody else has.
+* After a commit the new value replaces the one this instance read
+* through putIfUntouched, or is added if there was none; if someone
+* touched or added it in between, the entry is deleted so the next read
+* goes to Datastore. A conflict also
+* deletes it, so a stale entry cannot keep a command failing.
+*
+* Finished games are staged per channel until the commit that finished
+* them succeeds, then queued for a write-behind thread that stores them
+* as TTTRecord entities in batches. Results are staged the same way
+* before they count in the stats. History and stats reads stay local.
+*
+* Stats and history are per instance. The constructor reads every stored
+* TTTRecord into them, so a new instance starts from all games recorded
+* so far, less those still on their channel's board. From then on it
+* counts only the games finished through it, so instances disagree on
+* games finished elsewhere until they restart.
+*
+* Construct it with DatastoreServiceFactory.getDatastoreService() and
+* MemcacheServiceFactory.getMemcacheService(), or null for no memcache;
+* in a test, after LocalServiceTestHelper with the datastore and
+* memcache test configs is set up.
+*
+* Summary of methods:
+* public DatastoreMemory(DatastoreService datastore, MemcacheService memcache)
+* private void restoreRecords()
+* private static TTTRecord record(Entity entity)
+* TTT current(String channel)
+* private byte [] load(String channel)
+* private void publish(String channel, byte [] value)
+* public long commit(String channel)
+* public void invalidate(String channel)
+* private void drop(String channel)
+* public long expireIfIdle(String channel, long nowMS, long idleMS)
+* void archive(TTTRecord record)
+* public void recordResult(String channel, TTT board)
+* public long getDroppedRecords()
+* public long getNearHits()
+* public long getCacheHits()
+* public long getCacheMisses()
+* public void shutdown()
+*/
+class DatastoreMemory extends Memory {
+  static final String BOARD_KIND = "TTTBoard";
+  static final String RECORD_KIND = "TTTRecord";
+
+  /** Version and encoding of a cached board and when it was checked. */
+  private static class Stamp {
+    final long version;
+    final long checkedMS;
+    final byte [] board;
+    Stamp(long version, long checkedMS, byte [] board) {
+      this.version = version;
+      this.checkedMS = checkedMS;
+      this.board = board;
+    }
+  }
+
+  private final DatastoreService datastore;
+  private final MemcacheService memcache;
+  private final Expiration expiration = 
+    Expiration.byDeltaSeconds(TTTConfig.memcacheSeconds);
+  // memcache entry each channel was last read at, for putIfUntouched
+  private final Map<String, MemcacheService.IdentifiableValue> seen = 
+    new ConcurrentHashMap<>();
+  private final LongAdder nearHits = new LongAdder();
+  private final LongAdder cacheHits = new LongAdder();
+  private final LongAdder cacheMisses = new LongAdder();
+  // present for every channel read, also those without a board until
+  // the reaper finds them idle
+  private final Map<String, Stamp> stamps = new ConcurrentHashMap<>();
+  // finished games waiting for their channel's commit, guarded by its lock
+  private final Map<String, List<TTTRecord>> staged = new ConcurrentHashMap<>();
+  private final Map<String, List<TTTRecord>> stagedResults = 
+    new ConcurrentHashMap<>();
+  private final ArrayBlockingQueue<TTTRecord> writeBehind = 
+    new ArrayBlockingQueue<>(TTTConfig.writeBehindCapacity);
+  private final LongAdder dropped = new LongAdder();
+  private final Thread writer;
+  private volatile boolean running = true;
+
+  public DatastoreMemory(DatastoreService datastore, MemcacheService memcache) {
+    this.datastore = datastore;
+    this.memcache = memcache;
+    restoreRecords();
+    writer = new Thread(this::writeLoop, "ttt-write-behind");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /** Count the stored TTTRecords, see the class comment. */
+  private void restoreRecords() {
+    int count = 0;
+    try {
+      for(Entity entity: datastore.prepare(new Query(RECORD_KIND)).asIterable(
+        FetchOptions.Builder.withChunkSize(TTTConfig.writeBehindBatch)))
+      {
+        restoreHistory(record(entity));
+        count++;
+      }
+    } catch(RuntimeException e) {
+      TTTLog.warning("restored only %d records: %s", count, e);
+      return;
+    }
+    TTTLog.info("restored %d records", count);
+  }
+
+  private static TTTRecord record(Entity entity) {
+    TTTRecord record = new TTTRecord();
+    record.channel = ((String)entity.getProperty("channel")).intern();
+    record.winnerUser = intern((String)entity.getProperty("winner"));
+    record.loserUser = intern((String)entity.getProperty("loser"));
+    record.isDraw = (Boolean)entity.getProperty("isDraw");
+    record.size = (byte)(long)(Long)entity.getProperty("size");
+    record.moves = ((Blob)entity.getProperty("moves")).getBytes();
+    record.timeEndMS = (Long)entity.getProperty("timeEndMS");
+    return record;
+  }
+
+  private static String intern(String s) {
+    return (s == null) ? null : s.intern();
+  }
+
+  private static Key key(String channel) {
+    return KeyFactory.createKey(BOARD_KIND, channel);
+  }
+
+  private static String cacheKey(String channel) {
+    return BOARD_KIND + ":" + channel;
+  }
+
+  private static long version(Entity entity) {
+    return (entity == null) ? 0 : (Long)entity.getProperty("version");
+  }
+
+  /** Cache value: version, then the encoded board if there is one. */
+  private static byte [] value(long version, byte [] board) {
+    int length = (board == null) ? 0 : board.length;
+    ByteBuffer buf = ByteBuffer.allocate(8 + length);
+    buf.putLong(version);
+    if(board != null) {
+      buf.put(board);
+    }
+    return buf.array();
+  }
+
+  private static long version(byte [] value) {
+    return ByteBuffer.wrap(value).getLong(0);
+  }
+
+  /** Cached board while fresh, else read it again if its version moved. */
+  @Override
+  TTT current(String channel) {
+    long nowMS = System.currentTimeMillis();
+    Stamp stamp = stamps.get(channel);
+    if(stamp != null && nowMS - stamp.checkedMS < TTTConfig.nearCacheMS) {
+      nearHits.increment();
+      return mapCurrent.get(channel);
+    }
+    byte [] value = load(channel);
+    long version = version(value);
+    TTT ttt = mapCurrent.get(channel);
+    byte [] board;
+    if(stamp == null || stamp.version != version) {
+      ttt = decode(value);
+      board = (value.length <= 8) ? null : 
+        Arrays.copyOfRange(value, 8, value.length);
+      if(ttt == null) {
+        mapCurrent.remove(channel);
+      }
+      else {
+        mapCurrent.put(channel, ttt);
+        scheduleReaper(channel, ttt);
+      }
+    }
+    else {
+      board = stamp.board;
+    }
+    stamps.put(channel, new Stamp(version, nowMS, board));
+    if(ttt == null) {
+      scheduleReaper(channel, nowMS);
+    }
+    return ttt;
+  }
+
+  /** Stored value of channel, from memcache if it has it. */
+  private byte [] load(String channel) {
+    if(memcache != null) {
+      MemcacheService.IdentifiableValue cached = 
+        memcache.getIdentifiable(cacheKey(channel));
+      if(cached != null && cached.getValue() instanceof byte []) {
+        cacheHits.increment();
+        seen.put(channel, cached);
+        return (byte [])cached.getValue();
+      }
+      cacheMisses.increment();
+    }
+    Entity entity = null;
+    try {
+      entity = datastore.get(key(channel));
+    } catch(EntityNotFoundException e) {
+      // never played here
+    }
+    Blob blob = (entity == null) ? null : (Blob)entity.getProperty("board");
+    byte [] value = value(version(entity), 
+      (blob == null) ? null : blob.getBytes());
+    if(memcache != null) {
+      memcache.put(cacheKey(channel), value, expiration, 
+        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+    return value;
+  }
+
+  /** Replace the memcache entry last read with value, if untouched since. */
+  private void publish(String channel, byte [] value) {
+    String cacheKey = cacheKey(channel);
+    MemcacheService.IdentifiableValue old = seen.remove(channel);
+    if(old == null) {
+      old = memcache.getIdentifiable(cacheKey);
+    }
+    boolean stored;
+    if(old == null) {
+      // a concurrent load may have added an older value since
+      stored = memcache.put(cacheKey, value, expiration, 
+        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+    else {
+      stored = memcache.putIfUntouched(cacheKey, old, value, expiration);
+    }
+    if(!stored) {
+      memcache.delete(cacheKey);
+    }
+  }
+
+  private static TTT decode(byte [] value) {
+    if(value.length <= 8) {
+      return null;
+    }
+    try {
+      return TTTCodec.readBoard(ByteBuffer.wrap(value, 8, value.length - 8));
+    } catch(IOException e) {
+      throw new IllegalStateException("Bad stored board", e);
+    }
+  }
+
+  /**
+   * Write channel's board if nobody else wrote it since it was read.
+   * Caller must hold getLock(channel). Throws
+   * ConcurrentModificationException if the stored version moved.
+   * Only checks the version if the board encodes as it was read.
+   */
+  @Override
+  public long commit(String channel) {
+    Stamp stamp = stamps.get(channel);
+    long expected = (stamp == null) ? 0 : stamp.version;
+    TTT ttt = mapCurrent.get(channel);
+    byte [] board = (ttt == null) ? null : TTTCodec.encodeBoard(ttt);
+    if(stamp != null && Arrays.equals(board, stamp.board) 
+      && !staged.containsKey(channel) && !stagedResults.containsKey(channel))
+    {
+      // nothing to write, but the answer is only right on the stored board
+      if(version(load(channel)) != expected) {
+        throw new ConcurrentModificationException(channel);
+      }
+      return -1;
+    }
+    Key key = key(channel);
+    Transaction txn = datastore.beginTransaction();
+    try {
+      Entity stored = null;
+      try {
+        stored = datastore.get(txn, key);
+      } catch(EntityNotFoundException e) {
+        // first game in channel
+      }
+      if(version(stored) != expected) {
+        throw new ConcurrentModificationException(channel);
+      }
+      Entity entity = new Entity(key);
+      entity.setUnindexedProperty("version", expected + 1);
+      if(board != null) {
+        entity.setUnindexedProperty("board", new Blob(board));
+      }
+      datastore.put(txn, entity);
+      txn.commit();
+    } finally {
+      if(txn.isActive()) {
+        txn.rollback();
+      }
+    }
+    if(board == null) {
+      // read again on next use, so cleared channels keep no stamp
+      stamps.remove(channel);
+    }
+    else {
+      stamps.put(channel, 
+        new Stamp(expected + 1, System.currentTimeMillis(), board));
+    }
+    if(memcache != null) {
+      publish(channel, value(expected + 1, board));
+    }
+    List<TTTRecord> records = staged.remove(channel);
+    if(records != null) {
+      for(TTTRecord record: records) {
+        super.archive(record);
+        if(!writeBehind.offer(record)) {
+          dropped.increment();
+        }
+      }
+    }
+    List<TTTRecord> results = stagedResults.remove(channel);
+    if(results != null) {
+      for(TTTRecord result: results) {
+        getStats().record(result);
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public void invalidate(String channel) {
+    drop(channel);
+    if(memcache != null) {
+      memcache.delete(cacheKey(channel));
+    }
+  }
+
+  /** Forget channel in this instance only. */
+  private void drop(String channel) {
+    stamps.remove(channel);
+    mapCurrent.remove(channel);
+    staged.remove(channel);
+    stagedResults.remove(channel);
+    seen.remove(channel);
+  }
+
+  /**
+   * Idle boards only leave the near-cache; Datastore keeps them. A
+   * channel without a board drops its stamp once idleMS after it was
+   * last read.
+   */
+  @Override
+  public long expireIfIdle(String channel, long nowMS, long idleMS) {
+    ReentrantLock lock = getLock(channel);
+    lock.lock();
+    try {
+      TTT ttt = mapCurrent.get(channel);
+      long deadlineMS;
+      if(ttt != null) {
+        deadlineMS = ttt.getTimeLastMS() + idleMS;
+      }
+      else {
+        Stamp stamp = stamps.get(channel);
+        if(stamp == null) {
+          return -1;
+        }
+        deadlineMS = stamp.checkedMS + idleMS;
+      }
+      if(nowMS < deadlineMS) {
+        return deadlineMS;
+      }
+      drop(channel);
+      return -1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  void archive(TTTRecord record) {
+    staged.computeIfAbsent(record.channel, k -> new ArrayList<>()).add(record);
+  }
+
+  /** Counted once the commit that finished the game succeeds. */
+  @Override
+  public void recordResult(String channel, TTT board) {
+    stagedResults.computeIfAbsent(channel, k -> new ArrayList<>())
+      .add(new TTTRecord(channel, board));
+  }
+
+  /** Records lost because the write-behind queue was full or failed. */
+  public long getDroppedRecords() {
+    return dropped.sum();
+  }
+
+  /** Board reads answered by the near-cache. */
+  public long getNearHits() {
+    return nearHits.sum();
+  }
+
+  /** Near-cache misses answered by memcache. */
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  /** Near-cache misses that went on to Datastore. */
+  public long getCacheMisses() {
+    return cacheMisses.sum();
+  }
+
+  private void writeLoop() {
+    List<TTTRecord> batch = new ArrayList<>(TTTConfig.writeBehindBatch);
+    List<Entity> entities = new ArrayList<>(TTTConfig.writeBehindBatch);
+    while(running || !writeBehind.isEmpty()) {
+      try {
+        TTTRecord first = writeBehind.poll(TTTConfig.writeBehindMS, 
+          TimeUnit.MILLISECONDS);
+        if(first == null) {
+          continue;
+        }
+        batch.add(first);
+        writeBehind.drainTo(batch, TTTConfig.writeBehindBatch - 1);
+      } catch(InterruptedException e) {
+        return;
+      }
+      for(TTTRecord record: batch) {
+        Entity entity = new Entity(RECORD_KIND);
+        entity.setProperty("channel", record.channel);
+        entity.setProperty("winner", record.winnerUser);
+        entity.setProperty("loser", record.loserUser);
+        entity.setUnindexedProperty("isDraw", record.isDraw);
+        entity.setUnindexedProperty("size", (long)record.size);
+        entity.setUnindexedProperty("moves", new Blob(record.moves));
+        entity.setProperty("timeEndMS", record.timeEndMS);
+        entities.add(entity);
+      }
+      try {
+        if(!entities.isEmpty()) {
+          datastore.put(entities);
+        }
+      } catch(RuntimeException e) {
+        TTTLog.warning("write-behind lost %d records: %s", entities.size(), e);
+        dropped.add(entities.size());
+      }
+      batch.clear();
+      entities.clear();
+    }
+  }
+
+  /** Store what is queued and stop the writer. */
+  @Override
+  public void shutdown() {
+    running = false;
+    try {
+      writer.join(TTTConfig.writeBehindMS * 10);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
+
+/**
+* index_COORD
+*/
+class Coord {
+  public int row = -1;
+  public int col = -1;
+  public char val = ' ';
+  public Coord(int row, int col) {
+    this.row = row;
+    this.col = col;
+  }
+  public Coord(int row, int col, char val) {
+    this.row = row;
+    this.col = col;
+    this.val = val;
+  }
+}
+
+/**
+* index_CMD
+* CMD
+*
+* Command verbs, plus the int status codes used by TTTResponse. Verbs in
+* VERBS are accepted from user text. Adding a verb means adding it here
+* and registering its handler in Processor.
+*
+* Summary of methods:
+* public String getVerb()
+* public boolean mutates()
+* public static CMD parse(String s, int start, int end)
+*/
+enum CMD {
+  NOP("nop", false),
+  START("start", true),
+  PLAY("play", false),
+  PUT("put", true),
+  RESTART("restart", true),
+  QUIT("quit", true),
+  RESIGN("resign", true),
+  STATUS("status", false),
+  STATS("stats", false),
+  LEADERBOARD("leaderboard", false),
+  HINT("hint", false),
+  ANALYZE("analyze", false),
+  HELP("help", false);
+
+  public static final int ERR = 0;
+  public static final int OK = 1;
+  public static final int OK_PUBLIC = 2;
+
+  private static final CMD [] VERBS = {
+    START, PUT, RESTART, QUIT, RESIGN, STATUS, STATS, LEADERBOARD, HINT,
+    ANALYZE, HELP
+  };
+  // VERBS grouped by verb length, so parse compares few candidates
+  private static final CMD [][] VERBS_BY_LENGTH;
+  static {
+    int maxLength = 0;
+    for(CMD cmd: VERBS) {
+      maxLength = Math.max(maxLength, cmd.verb.length());
+    }
+    VERBS_BY_LENGTH = new CMD[maxLength + 1][];
+    for(int length = 0; length <= maxLength; length++) {
+      List<CMD> list = new ArrayList<>();
+      for(CMD cmd: VERBS) {
+        if(cmd.verb.length() == length) {
+          list.add(cmd);
+        }
+      }
+      VERBS_BY_LENGTH[length] = list.toArray(new CMD[0]);
+    }
+  }
+
+  private final String verb;
+  private final boolean mutates;
+
+  CMD(String verb, boolean mutates) {
+    this.verb = verb;
+    this.mutates = mutates;
+  }
+
+  public String getVerb() {
+    return verb;
+  }
+
+  /** Can this verb change the channel's board. */
+  public boolean mutates() {
+    return mutates;
+  }
+
+  /** The verb spelled by s[start,end), or null if there is none. */
+  public static CMD parse(String s, int start, int end) {
+    int length = end - start;
+    if(length >= VERBS_BY_LENGTH.length) {
+      return null;
+    }
+    for(CMD cmd: VERBS_BY_LENGTH[length]) {
+      if(s.regionMatches(start, cmd.verb, 0, length)) {
+        return cmd;
+      }
+    }
+    return null;
+  }
+}
+
+/**
+* index_COMMAND
+* Command
+* Summmary of methods:
+* public Command(String username, String channel)
+* public void setCommand(CMD command)
+* public void setCommand(CMD command, Coord coord)
+* public void setInvitee(String username)
+* public String getInvitee()
+* public void setBot(TTTBot.Level level, int size)
+* public TTTBot.Level getBotLevel()
+* public int getSize()
+* public String getUser()
+* public CMD getCommand()
+* public String getChannel()
+* public Coord getCoord()
+* public void setBotTurn(TTT board)
+* public TTT getBotTurn()
+*/
+class Command {
+  String username = null;
+  String usernameDst = null;
+  CMD command = null;
+  String channel = null;
+  Coord coord = null;
+  TTTBot.Level botLevel = null;
+  int size = 3;
+  // copy of a board the bot answers after the lock is released
+  TTT botTurn = null;
+  
+  public Command(String username, String channel) {
+    this.username = username;
+    this.channel = channel;
+  }
+
+  public void setCommand(CMD command) {
+    this.command = command;
+  }
+  public void setCommand(CMD command, Coord coord) {
+    this.command = command;
+    this.coord = coord;
+  }
+  public void setInvitee(String username) {
+    usernameDst = username;
+  }
+  public String getInvitee() {
+    return usernameDst;
+  }
+  public void setBot(TTTBot.Level level, int size) {
+    botLevel = level;
+    this.size = size;
+  }
+  public TTTBot.Level getBotLevel() {
+    return botLevel;
+  }
+  public int getSize() {
+    return size;
+  }
+  public void setTarget(String username) {
+    usernameDst = username;
+  }
+  public String getTarget() {
+    return usernameDst;
+  }
+  public String getUser() {
+    return username;
+  }
+  public CMD getCommand() {
+    return command;
+  }
+  public String getChannel() {
+    return channel;
+  }
+  public Coord getCoord() {
+    return coord;
+  }
+  public void setBotTurn(TTT board) {
+    botTurn = board;
+  }
+  public TTT getBotTurn() {
+    return botTurn;
+  }
+}
+
+/**
+* index_TTTRESPONSE
+*/
+class TTTResponse {
+  public int status = CMD.ERR;
+  public String message = null;
+  public TTTResponse() {
+  }
+  public TTTResponse(int status) {
+    this.status = status;
+  }
+  public TTTResponse(int status, String message) {
+    this.status = status;
+    this.message = message;
+  }
+}
+
+/**
+* index_PROCESSOR
+* Processor processes incoming commands onto TTT.
+* 
+* Rules: One game per channel. So have a map of channel_name and game state.
+* 
+* Commands:
+* /ttt start @username
+* /ttt start
+* /ttt start bot [easy|medium|hard] [size]
+* /ttt put row col
+* /ttt restart
+* /ttt quit
+* /ttt resign offer
+* /ttt resign accept
+* /ttt status
+* /ttt stats [username]
+* /ttt leaderboard
+* /ttt hint
+* /ttt analyze
+* /ttt help
+* 
+* In a bot game player2 is a TTTBot, which replies to each put in the
+* same request. The put commits the player's move and hands a copy of
+* the board to the bot, which searches it without the channel's lock.
+* Its move is then applied under the lock like a command of its own,
+* unless the game moved on meanwhile. Processor owns a fixed pool of
+* TTTConfig.botEngines bots. A move that finds them all busy plays a one
+* ply search on the request thread's small fallback bot instead of
+* waiting.
+* 
+* Requests pass through TTTDedup before createCommand, so one that
+* Slack delivers twice is answered once.
+* 
+* If TTTConfig.useMailbox is set, commands are not executed on the
+* request thread. Each one is queued on its channel's mailbox in
+* ChannelExecutor, which runs a channel's commands one at a time in
+* arrival order, and the request thread waits for the result.
+* 
+* Summary of methods:
+* public Processor()
+* public Processor(boolean useMailbox)
+* public Processor(boolean useMailbox, Memory memory)
+* public void shutdown()
+* private void openJournal(File dir)
+* private void registerHandlers()
+* public TTTResponse process(Map<String,String> map)
+* public TTTResponse process(Map<String,String> map, boolean isRetry)
+* public TTTResponse process(Map<String,String> map, Command cmd, boolean isRetry)
+* public Command parse(Map<String,String> map)
+* private boolean isLookup(Map<String,String> map, boolean isRetry)
+* public boolean isReplay(Map<String,String> map, boolean isRetry)
+* private TTTResponse processCommand(Command cmd)
+* public boolean isDeferred(Command cmd)
+* public TTTMetrics getMetrics()
+* public Memory getMemory()
+* private TTTResponse executeInMailbox(Command command)
+* private TTTResponse giveUp(Command command, ChannelExecutor.Task<TTTResponse> future)
+* private TTTResponse failed(Command command, ExecutionException e)
+* Command createCommand(Map<String,String> map)
+* private static int parseInt(String s, int start, int end)
+* private String executeCommand(Command command)
+* private TTTResponse executeLocked(Command command, Supplier<TTTResponse> body, boolean mutates)
+* private String executeCommandLocked(Command command)
+* private isValueNullOrZero(String s)
+* private boolean validateKeys(Map<String,String> map)
+* private String executeCommandStart(Command command)
+* private TTTResponse startBot(String channel, String user, Command command)
+* private int searchBot(TTT board)
+* private TTTResponse applyBot(String channel, TTT board, int cell)
+* private String putMessage(String channel, TTT ttt, String botMove)
+* private TTTResponse executeCommandStats(Command command)
+* private TTTResponse executeCommandLeaderboard(Command command)
+* private TTTResponse executeCommandHint(Command command)
+* private TTTResponse executeCommandAnalyze(Command command)
+* 
+*/
+class Processor {
+  interface CommandHandler {
+    TTTResponse execute(Command command);
+  }
+
+  // indexed by CMD.ordinal(), null falls back to help
+  private final CommandHandler [] handlers = 
+    new CommandHandler[CMD.values().length];
+  private Memory memory = null;
+  private final TTTMetrics metrics = new TTTMetrics();
+  // built here so the first hint does not pay for it
+  private final TTTOracle oracle = TTTOracle.get();
+  private final ArrayBlockingQueue<TTTBot> bots = 
+    new ArrayBlockingQueue<>(TTTConfig.botEngines);
+  // one ply searches when the pool is busy, allocated once per thread
+  private static final ThreadLocal<TTTBot> fallbackBot = 
+    ThreadLocal.withInitial(() -> new TTTBot(TTTConfig.botFallbackBits));
+  private ChannelExecutor channelExecutor = null;
+  private TTTReaper reaper = null;
+  private TTTJournal journal = null;
+  private final TTTDedup dedup = new TTTDedup(TTTConfig.dedupCapacity, 
+    TTTConfig.dedupTtlMS, TTTConfig.dedupWaitMS, metrics.replays);
+
+  public Processor() {
+    this(TTTConfig.useMailbox);
+  }
+
+  public Processor(boolean useMailbox) {
+    this(useMailbox, TTTConfig.useDatastore ? 
+      new DatastoreMemory(DatastoreServiceFactory.getDatastoreService(),
+        TTTConfig.useMemcache ? MemcacheServiceFactory.getMemcacheService() : null) :
+      new Memory());
+  }
+
+  public Processor(boolean useMailbox, Memory memory) {
+    registerHandlers();
+    this.memory = memory;
+    for(int i = 0; i < TTTConfig.botEngines; i++) {
+      bots.add(new TTTBot(TTTConfig.botTableBits));
+    }
+    if(TTTConfig.useReaper) {
+      reaper = new TTTReaper(memory, TTTConfig.idleTimeoutMS, 
+        TTTConfig.reaperTickMS, TTTConfig.reaperSlots);
+      memory.setReaper(reaper);
+      reaper.start();
+    }
+    // a shared store has its own durability
+    if(TTTConfig.journalDir != null && !(memory instanceof DatastoreMemory)) {
+      openJournal(new File(TTTConfig.journalDir));
+    }
+    if(useMailbox) {
+      channelExecutor = new ChannelExecutor(TTTConfig.mailboxThreads);
+    }
+  }
+
+  public void shutdown() {
+    if(channelExecutor != null) {
+      channelExecutor.shutdown();
+    }
+    if(reaper != null) {
+      reaper.shutdown();
+    }
+    if(journal != null) {
+      journal.close();
+    }
+    memory.shutdown();
+  }
+
+  /**
+   * Rebuild memory from the journal directory, then journal every
+   * mutation from here on. If the directory cannot be used the game
+   * runs in memory only.
+   */
+  private void openJournal(File dir) {
+    try {
+      journal = new TTTJournal(dir, TTTConfig.journalFlushMS, 
+        TTTConfig.journalSync);
+      journal.recover(memory);
+      journal.start(memory, TTTConfig.snapshotIntervalMS);
+      memory.setJournal(journal);
+    } catch(IOException e) {
+      TTTLog.warning("journal disabled, cannot open %s: %s", dir, e);
+      journal = null;
+    }
+  }
+
+  private void registerHandlers() {
+    handlers[CMD.START.ordinal()] = this::executeCommandStart;
+    handlers[CMD.PUT.ordinal()] = this::executeCommandPut;
+    handlers[CMD.RESTART.ordinal()] = this::executeCommandRestart;
+    handlers[CMD.QUIT.ordinal()] = this::executeCommandQuitResign;
+    handlers[CMD.RESIGN.ordinal()] = this::executeCommandQuitResign;
+    handlers[CMD.STATUS.ordinal()] = this::executeCommandStatus;
+    handlers[CMD.STATS.ordinal()] = this::executeCommandStats;
+    handlers[CMD.LEADERBOARD.ordinal()] = this::executeCommandLeaderboard;
+    handlers[CMD.HINT.ordinal()] = this::executeCommandHint;
+    handlers[CMD.ANALYZE.ordinal()] = this::executeCommandAnalyze;
+    handlers[CMD.HELP.ordinal()] = this::executeCommandHelp;
+  }
+
+  public TTTResponse process(Map<String, String> map) {
+    return process(map, false);
+  }
+
+  /**
+   * isRetry is set when Slack marks the request as a redelivery. Such a
+   * request, or one with a trigger_id, gets the response already given
+   * to it if there is one, without touching Memory.
+   */
+  public TTTResponse process(Map<String, String> map, boolean isRetry) {
+    return process(map, null, isRetry);
+  }
+
+  /** As above, with cmd from parse(map) if the caller already has it. */
+  public TTTResponse process(Map<String, String> map, Command cmd, 
+    boolean isRetry) 
+  {
+    TTTLog.debug("process called");
+    long startNS = System.nanoTime();
+    metrics.requests.increment();
+    if(!validateKeys(map)) {
+      TTTLog.debug("Processor validateKeys bad");
+      metrics.invalidKeys.increment();
+      return null;
+    } 
+    TTTResponse response = dedup.execute(TTTDedup.key(map), 
+      isLookup(map, isRetry), 
+      () -> processCommand((cmd != null) ? cmd : createCommand(map)));
+    metrics.process.record(System.nanoTime() - startNS);
+    return response;
+  }
+
+  private boolean isLookup(Map<String, String> map, boolean isRetry) {
+    return isRetry || !isValueNullOrZero(map.get("trigger_id"));
+  }
+
+  /** Will process answer map from an earlier response, without running it. */
+  public boolean isReplay(Map<String, String> map, boolean isRetry) {
+    return isLookup(map, isRetry) && dedup.contains(TTTDedup.key(map));
+  }
+
+  /** The command map asks for, or null if map is not one. */
+  public Command parse(Map<String, String> map) {
+    return validateKeys(map) ? createCommand(map) : null;
+  }
+
+  /**
+   * Is this a command worth answering later on response_url rather than
+   * inline: the ones that read every game a user or channel played.
+   */
+  public boolean isDeferred(Command cmd) {
+    if(cmd == null) {
+      return false;
+    }
+    switch(cmd.getCommand()) {
+      case STATS:
+      case LEADERBOARD:
+      case ANALYZE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private TTTResponse processCommand(Command cmd) {
+    if(cmd == null) {
+      TTTLog.debug("Processor createCommand null");
+      metrics.invalidCommands.increment();
+      return null;
+    }
+    if(channelExecutor != null) {
+      return executeInMailbox(cmd);
+    }
+    return executeCommand(cmd);
+  }
+
+  public TTTMetrics getMetrics() {
+    return metrics;
+  }
+
+  public Memory getMemory() {
+    return memory;
+  }
+
+  /**
+   * executeInMailbox(Command command)
+   *
+   * Queue the command behind earlier commands for the same channel and
+   * wait for it. The command still takes the channel stripe lock when
+   * it runs; with a single consumer per channel that lock is never
+   * contended, it only keeps other Memory users consistent.
+   *
+   * A command given up on is withdrawn, so it does not run after the
+   * user has been told to retry. One that has already started cannot be
+   * withdrawn: if it has finished meanwhile its answer is returned,
+   * otherwise the user is told it is still queued.
+   */
+  private TTTResponse executeInMailbox(Command command) {
+    ChannelExecutor.Task<TTTResponse> future;
+    try {
+      future = channelExecutor.submit(command.getChannel(), 
+        () -> executeCommand(command));
+    } catch(RejectedExecutionException e) {
+      // executor shut down underneath us
+      return executeCommand(command);
+    }
+    try {
+      return future.get(TTTConfig.mailboxWaitMS, TimeUnit.MILLISECONDS);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return giveUp(command, future);
+    } catch(TimeoutException e) {
+      TTTLog.warning("executeInMailbox timed out on channel %s", 
+        command.getChannel());
+      return giveUp(command, future);
+    } catch(ExecutionException e) {
+      return failed(command, e);
+    }
+  }
+
+  /** Answer for a command no longer waited for, see executeInMailbox. */
+  private TTTResponse giveUp(Command command, 
+    ChannelExecutor.Task<TTTResponse> future)
+  {
+    if(future.withdraw()) {
+      return new TTTResponse(CMD.ERR, "Server busy. Try again...");
+    }
+    if(!future.isDone()) {
+      return new TTTResponse(CMD.ERR, "Command queued. Check status...");
+    }
+    try {
+      // done, so this does not block
+      return future.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new TTTResponse(CMD.ERR, "Command queued. Check status...");
+    } catch(ExecutionException e) {
+      return failed(command, e);
+    }
+  }
+
+  private TTTResponse failed(Command command, ExecutionException e) {
+    if(e.getCause() instanceof RejectedExecutionException) {
+      // failed unrun when the executor shut down
+      return executeCommand(command);
+    }
+    TTTLog.warning("executeInMailbox failed: %s", e.getCause());
+    return new TTTResponse(CMD.ERR, "Server busy. Try again...");
+  }
+
+  /** Package-private so the parse benchmark can call it directly. */
+  Command createCommand(Map<String, String> map) {
+    TTTLog.debug("createCommand called");
+    String scmd = map.get("command");
+    String suser = map.get("user_name");
+    String schannel = map.get("channel_name");
+    String stext = map.get("text"); 
+
+    if(!"/ttt".equals(scmd)) {
+      TTTLog.debug("scmd %s is not /ttt", scmd);
+      return null;
+    }
+
+    // Single pass over text: find up to MAX_TOKENS tokens by offset,
+    // match the verb in place and parse put coordinates without
+    // allocating substrings or throwing.
+    int len = stext.length();
+    int [] bounds = new int[MAX_TOKENS * 2];
+    int szary = 0;
+    int pos = 0;
+    while(true) {
+      while(pos < len && isSpace(stext.charAt(pos))) {
+        pos++;
+      }
+      if(pos == len) {
+        break;
+      }
+      if(szary == MAX_TOKENS) {
+        return null;
+      }
+      bounds[szary * 2] = pos;
+      while(pos < len && !isSpace(stext.charAt(pos))) {
+        pos++;
+      }
+      bounds[szary * 2 + 1] = pos;
+      szary++;
+    }
+
+    if(szary == 0) {
+      return null;
+    }
+
+    CMD verb = CMD.parse(stext, bounds[0], bounds[1]);
+    if(verb == null) {
+      return null;
+    }
+
+    Command command = new Command(suser, schannel);
+
+    if(verb == CMD.START) {
+      if(szary >= 2 && bounds[3] - bounds[2] == TTTBot.NAME.length() &&
+         stext.startsWith(TTTBot.NAME, bounds[2]))
+      {
+        // start bot [level] [size], in either order
+        TTTBot.Level level = null;
+        int size = 0;
+        for(int t = 2; t < szary; t++) {
+          int start = bounds[t * 2];
+          int end = bounds[t * 2 + 1];
+          int n = parseInt(stext, start, end);
+          if(n != Integer.MIN_VALUE && size == 0) {
+            if(n < 3 || n > TTTBitBoard.MAX_SIZE) {
+              return null;
+            }
+            size = n;
+          }
+          else if(n == Integer.MIN_VALUE && level == null) {
+            level = TTTBot.Level.parse(stext, start, end);
+            if(level == null) {
+              return null;
+            }
+          }
+          else {
+            return null;
+          }
+        }
+        command.setBot((level == null) ? TTTConfig.botLevel : level, 
+          (size == 0) ? 3 : size);
+      }
+      else if(szary > 2) {
+        return null;
+      }
+      else if(szary == 2) {
+        command.setInvitee(stext.substring(bounds[2], bounds[3]));
+      }
+      command.setCommand(CMD.START);
+    }
+    else if(verb == CMD.PUT) {
+      if(szary != 3) {
+        return null;
+      }
+      int row = parseInt(stext, bounds[2], bounds[3]);
+      int col = parseInt(stext, bounds[4], bounds[5]);
+      if(row == Integer.MIN_VALUE || col == Integer.MIN_VALUE) {
+        return null;
+      }
+      command.setCommand(CMD.PUT, new Coord(row, col));
+    }
+    else if(verb == CMD.STATS) {
+      if(szary > 2) {
         return null;
       }
-      if(szary == 2) {
-        command.setInvitee(sary[1]);
+      if(szary == 2) {
+        command.setTarget(stext.substring(bounds[2], bounds[3]));
+      }
+      command.setCommand(CMD.STATS);
+    }
+    else {
+      command.setCommand(verb);
+    }
+    return command;
+  }
+
+  private static final int MAX_TOKENS = 4;
+
+  /** Same characters as the regex class \\s. */
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || 
+           c == '\f' || c == '\u000b';
+  }
+
+  /**
+   * Parse s[start,end) as a decimal int with optional sign. Returns
+   * Integer.MIN_VALUE if it is not a number or has more than 9 digits.
+   */
+  private static int parseInt(String s, int start, int end) {
+    boolean negative = false;
+    char c = s.charAt(start);
+    if(c == '-' || c == '+') {
+      negative = (c == '-');
+      start++;
+    }
+    if(start == end || end - start > 9) {
+      return Integer.MIN_VALUE;
+    }
+    int value = 0;
+    for(int i = start; i < end; i++) {
+      int digit = s.charAt(i) - '0';
+      if(digit < 0 || digit > 9) {
+        return Integer.MIN_VALUE;
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * executeCommandStart(Command command)
+   * 
+   * If board is done, then start a new board.
+   *
+   * A new board starts off with board not ready, since it 
+   * needs 2 users.
+   *
+   * If new board is set but not ready, then 1 user has
+   * started the board, but a second user has not yet joined.
+   * 
+   * If a not ready board is called start, then check: 
+   * if user is either invitee or there is no invitee, then
+   * user can join game, and board ready is set. If user
+   * is not invitee, or there is already 2 players, then false.
+   * 
+   * Once board is ready, then print board and first user
+   * goes first.
+   * 
+   */ 
+  private TTTResponse executeCommandStart(Command command) {
+    TTTLog.debug("executeCommandStart");
+    String channel = command.getChannel();
+    String user = command.getUser();
+    String invitee = command.getInvitee();
+    StringBuilder sb = new StringBuilder();
+
+    TTT ttt = memory.getBoard(channel);
+   
+    if(ttt == null || ttt.getIsDone()) {
+      // is entirely clean slate or last game is done,
+      // then this user can start a new one.
+      if(command.getBotLevel() != null) {
+        return startBot(channel, user, command);
+      }
+      ttt = new TTT();
+      ttt.setPlayer1(user);
+      if(invitee != null) {
+         ttt.setInvitee(invitee);
+      }
+      memory.setBoard(channel, ttt);
+      TTTResponse response = new TTTResponse(CMD.OK);
+      String message = "New board created. Pending...";
+      response.message = message;
+      return response;
+    }
+    else if(!ttt.getIsReady()) {
+      // if waiting for second user to join then set ttt to ready. 
+      // If first user is calling this again, then false.
+
+      TTTResponse response = new TTTResponse(CMD.ERR);
+      String player1 = ttt.getPlayer1();
+      String player2 = ttt.getPlayer2();
+      String playerInvitee = ttt.getInvitee();
+      if(user.equals(player1)) {
+        response.message = "Board already created. Pending...";
+        return response;
+      }
+      if(player2 == null && (playerInvitee == null || playerInvitee.equals(user))) {
+        ttt.setPlayer2(user);
+        response.status = CMD.OK_PUBLIC;
+        response.message = ttt.getBoardString() + "\n" + 
+          String.format("Board ready. %s starts...", player1);
+        return response;
+      }
+      response.message = "Cannot create new board. Board is active...";
+      return response; 
+    }
+    TTTResponse response = new TTTResponse(CMD.ERR);
+    response.message = "Board not created. Already existing board...";
+    return response;
+  }
+
+  /**
+   * A bot game is ready at once, user plays X and moves first. Boards
+   * larger than TTTConfig.botWinLength are won by that many in a row.
+   */
+  private TTTResponse startBot(String channel, String user, Command command) {
+    int size = command.getSize();
+    int winLength = Math.min(size, TTTConfig.botWinLength);
+    TTT ttt = new TTT(size, winLength);
+    ttt.setPlayer1(user);
+    ttt.setPlayer2(TTTBot.name(command.getBotLevel()));
+    memory.setBoard(channel, ttt);
+    TTTResponse response = new TTTResponse(CMD.OK_PUBLIC);
+    response.message = ttt.getBoardString() + "\n" + 
+      String.format("Board ready against %s, %d in a row wins. %s starts...",
+        ttt.getPlayer2(), winLength, user);
+    return response;
+  }
+
+  /** Is the player to move on ttt a bot. */
+  private static boolean isBotTurn(TTT ttt) {
+    return !ttt.getIsDone() && TTTBot.levelOf(ttt.getCurrentPlayer()) != null;
+  }
+
+  /**
+   * The bot's cell on board, a copy nobody else holds, so this runs
+   * without the channel's lock. The bot gets TTTConfig.botMoveMS.
+   */
+  private int searchBot(TTT board) {
+    TTTBot.Level level = TTTBot.levelOf(board.getCurrentPlayer());
+    long startNS = System.nanoTime();
+    int cell;
+    TTTBot engine = bots.poll();
+    if(engine != null) {
+      try {
+        cell = engine.move(board, level, TTTConfig.botMoveMS);
+      } finally {
+        bots.add(engine);
+      }
+    }
+    else {
+      metrics.botBusy.increment();
+      cell = fallbackBot.get().move(board, TTTBot.Level.EASY, 0);
+    }
+    metrics.botMove.record(System.nanoTime() - startNS);
+    return cell;
+  }
+
+  /**
+   * Play cell, found by searchBot on board, if channel's game is still
+   * where board left it. Caller must hold getLock(channel).
+   */
+  private TTTResponse applyBot(String channel, TTT board, int cell) {
+    TTT ttt = memory.getBoard(channel);
+    if(ttt == null || ttt.getGameId() != board.getGameId() || 
+       ttt.numPopulated != board.numPopulated || !isBotTurn(ttt))
+    {
+      return new TTTResponse(CMD.OK, 
+        "The game changed before the bot could move...");
+    }
+    String bot = ttt.getCurrentPlayer();
+    int size = ttt.getSize();
+    ttt.set(bot, cell / size, cell % size);
+    TTTResponse response = new TTTResponse(CMD.OK_PUBLIC);
+    response.message = putMessage(channel, ttt, 
+      String.format("%s put %d %d\n", bot, cell / size, cell % size));
+    return response;
+  }
+
+  /** Board after a put, the bot's reply if any, and what comes next. */
+  private String putMessage(String channel, TTT ttt, String botMove) {
+    StringBuilder sb = new StringBuilder();
+    String msg = ttt.getBoardString();
+    sb.append(msg);
+    if(botMove != null) {
+      sb.append(botMove);
+    }
+
+    if(ttt.getIsDone()) {
+      memory.recordResult(channel, ttt);
+      String winner = ttt.getWinner();
+      if(winner != null) {
+        msg = String.format("Game over. Winner is %s", winner);
+        sb.append(msg);
+      }
+      else {
+        msg = "Game over. Draw...";
+        sb.append(msg);
+      }
+    }
+    else {
+      msg = String.format("Next move is for player %s",
+        ttt.getCurrentPlayer());
+      sb.append(msg);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * executeCommandPut(Command command)
+   * 
+   * user puts mark on tic tac toe board.
+   * 
+   * If it is not user's turn, then reject.
+   * 
+   * If the coordinate is out of bounds or already marked, reject.
+   * 
+   * If game has not started yet or is game over, then reject.
+   *
+   * Syntax is /ttt put row col
+   * 
+   */
+  private TTTResponse executeCommandPut(Command command) {
+    TTTLog.debug("executeCommandPut");
+    command.setBotTurn(null);
+    String channel = command.getChannel();
+    TTT ttt = memory.getBoard(channel);
+    TTTResponse response = new TTTResponse(CMD.OK_PUBLIC);
+    if(ttt == null) {
+      response.status = CMD.OK;
+      response.message = "No board active...";
+    }
+    else if(ttt.getIsDone()) {
+      response.status = CMD.OK;
+      response.message = "Game is done. Start a new one...";
+    }
+    else if(!ttt.getIsReady()) {
+      response.status = CMD.OK;
+      response.message = "Waiting for a second player...";
+    }
+    else if(isBotTurn(ttt)) {
+      // the bot's last reply was lost, e.g. to a failed commit
+      command.setBotTurn(ttt.copy());
+    }
+    else {
+      String user = command.getUser();
+      Coord coord = command.getCoord();
+      if(coord == null) {
+        response.status = CMD.OK;
+        response.message = "No coordinates set for move...";
+        return response;
+      }
+      if(ttt.set(user, coord.row, coord.col)) {
+        if(isBotTurn(ttt)) {
+          command.setBotTurn(ttt.copy());
+        }
+        else {
+          response.message = putMessage(channel, ttt, null);
+        }
+      }
+      else {
+        response.status = CMD.OK;
+        response.message = String.format("Cannot place move on %d %d",
+          coord.row, coord.col);
+      }
+    }
+    return response;
+  }
+
+  private TTTResponse executeCommandQuitResign(Command command) {
+    TTTLog.debug("executeCommandQuitResign");
+    String channel = command.getChannel();
+    String user = command.getUser();
+    TTTResponse response = new TTTResponse();
+    TTT ttt = memory.getBoard(channel);
+    if(ttt == null) {
+      response.status = CMD.OK;
+      response.message = "Board is null. Cannot quit...";
+    }
+    else {
+      if(ttt.quit(user)) {
+        memory.recordResult(channel, ttt);
+        response.status = CMD.OK_PUBLIC;
+        StringBuilder sb = new StringBuilder();
+        String msg = ttt.getBoardString();
+        sb.append(msg + "\n");
+        msg = String.format("%s quit. Winner is %s\n", user, ttt.getWinner());
+        sb.append(msg);
+        response.message = sb.toString();
+      }
+      else {
+        response.status = CMD.OK;
+        response.message = "Game is done. Cannot quit...";
+      }
+    }
+    return response;
+  }
+
+  private TTTResponse executeCommandStatus(Command command) {
+    TTTLog.debug("executeCommandStatus");
+    String channel = command.getChannel();
+    TTT ttt = memory.getBoard(channel);
+    TTTResponse response = new TTTResponse(CMD.OK_PUBLIC);
+    if(ttt == null) {
+      response.message = "No board active...";
+    }
+    else {
+      StringBuilder sb = new StringBuilder();
+      String msg = ttt.getBoardString();
+      sb.append(msg);
+      sb.append("\n");
+      if(ttt.getWinner() != null) {
+        msg = String.format("Game done. Winner is %s\n", ttt.getWinner());
+        sb.append(msg);
+      }
+      else if(ttt.isDraw()) {
+        sb.append("Game done. Draw...\n");
+      }
+      else {
+        msg = String.format("Game active. Waiting for player %s\n", 
+          ttt.getCurrentPlayer());
+        sb.append(msg);
+      }
+      response.message = sb.toString();
+    }
+    return response;
+  }
+ 
+  private TTTResponse executeCommandRestart(Command command) {
+    String channel = command.getChannel();
+    String user = command.getUser();
+    TTT ttt = memory.getBoard(channel);
+    TTTResponse response = new TTTResponse(CMD.OK);
+
+    if(ttt == null || ttt.getIsDone()) {
+      response.message = "Game over. No need to restart. Type start...";
+    }
+    else {
+      long timeCurrMS = System.currentTimeMillis();
+      long timeDiffMS = timeCurrMS - ttt.getTimeLastMS();
+      if(timeDiffMS < TTTConfig.timeout) {
+        long timeDiffS = (TTTConfig.timeout - timeDiffMS) / 1000;
+        response.message = String.format("Cannot restart. Wait %d seconds", 
+          timeDiffS);
+      }
+      else {
+        ttt.reset();
+        memory.clearBoard(channel);
+        response.message = "Board reset. Type start...";
+      }
+    } 
+    
+    return response;
+  }
+
+  private TTTResponse executeCommandStats(Command command) {
+    TTTLog.debug("executeCommandStats");
+    String user = command.getTarget();
+    if(user == null) {
+      user = command.getUser();
+    }
+    TTTStats stats = memory.getStats();
+    TTTResponse response = new TTTResponse(CMD.OK);
+    StringBuilder sb = new StringBuilder();
+    appendStats(sb, "overall", stats.get(user));
+    appendStats(sb, "here", stats.get(command.getChannel(), user));
+    response.message = (sb.length() == 0) ? 
+      String.format("No games finished by %s", user) : 
+      String.format("Stats for %s\n%s", user, sb);
+    return response;
+  }
+
+  private static void appendStats(StringBuilder sb, String label, 
+    TTTUserStats stats)
+  {
+    if(stats == null) {
+      return;
+    }
+    synchronized(stats) {
+      sb.append(String.format("%s: played %d, won %d, lost %d, drew %d\n",
+        label, stats.totalPlayed, stats.totalWin, stats.totalLoss, 
+        stats.totalDraw));
+    }
+  }
+
+  private TTTResponse executeCommandLeaderboard(Command command) {
+    TTTLog.debug("executeCommandLeaderboard");
+    TTTStats stats = memory.getStats();
+    TTTResponse response = new TTTResponse(CMD.OK_PUBLIC);
+    StringBuilder sb = new StringBuilder("```");
+    appendStandings(sb, "This channel", stats.top(command.getChannel()));
+    appendStandings(sb, "Everywhere", stats.top());
+    sb.append("```");
+    response.message = sb.toString();
+    return response;
+  }
+
+  private static void appendStandings(StringBuilder sb, String label,
+    List<TTTLeaderboard.Standing> standings)
+  {
+    sb.append(label).append(":\n");
+    if(standings.isEmpty()) {
+      sb.append("    no finished games\n");
+    }
+    int rank = 1;
+    for(TTTLeaderboard.Standing s: standings) {
+      sb.append(String.format("%4d. %-20s %d won, %d drew, %d lost\n", 
+        rank++, s.user, s.wins, s.draws, s.losses));
+    }
+  }
+
+  /** Why channel's board cannot be analyzed, or null if it can. */
+  private String checkAnalyzable(TTT ttt) {
+    if(ttt == null) {
+      return "No board active...";
+    }
+    if(ttt.getIsDone()) {
+      return "Game is done. Start a new one...";
+    }
+    if(!ttt.getIsReady()) {
+      return "Waiting for a second player...";
+    }
+    if(!TTTOracle.supports(ttt)) {
+      return "Hints are only available on 3x3 boards...";
+    }
+    return null;
+  }
+
+  /**
+   * Outcome for the side to move, or the other side, in words. plies
+   * counts both sides' moves with mover first, so the winner makes
+   * (plies + 1) / 2 of them, the winning move included.
+   */
+  private static String outcome(int value, int plies, char mover) {
+    char other = (mover == 'X') ? 'O' : 'X';
+    if(value == TTTOracle.DRAW) {
+      return "draw";
+    }
+    int moves = (plies + 1) / 2;
+    return String.format("%c wins with %d more %s", 
+      (value == TTTOracle.WIN) ? mover : other, moves, 
+      (moves == 1) ? "move" : "moves");
+  }
+
+  private TTTResponse executeCommandHint(Command command) {
+    TTTLog.debug("executeCommandHint");
+    TTT ttt = memory.getBoard(command.getChannel());
+    TTTResponse response = new TTTResponse(CMD.OK);
+    String error = checkAnalyzable(ttt);
+    if(error != null) {
+      response.message = error;
+      return response;
+    }
+    int entry = oracle.lookup(TTTOracle.encode(ttt));
+    if(entry < 0 || TTTOracle.move(entry) < 0) {
+      response.message = "No hint for this position...";
+      return response;
+    }
+    char mover = ttt.isPlayer1() ? 'X' : 'O';
+    int move = TTTOracle.move(entry);
+    response.message = String.format(
+      "Hint for %s (%c): put %d %d. With best play: %s.", 
+      ttt.getCurrentPlayer(), mover, move / 3, move % 3, 
+      outcome(TTTOracle.value(entry), TTTOracle.plies(entry), mover));
+    return response;
+  }
+
+  private TTTResponse executeCommandAnalyze(Command command) {
+    TTTLog.debug("executeCommandAnalyze");
+    TTT ttt = memory.getBoard(command.getChannel());
+    TTTResponse response = new TTTResponse(CMD.OK);
+    String error = checkAnalyzable(ttt);
+    if(error != null) {
+      response.message = error;
+      return response;
+    }
+    int state = TTTOracle.encode(ttt);
+    char mover = ttt.isPlayer1() ? 'X' : 'O';
+    StringBuilder sb = new StringBuilder("```");
+    sb.append(String.format("%c to move (%s)\n", mover, ttt.getCurrentPlayer()));
+    for(int cell = 0; cell < 9; cell++) {
+      if(ttt.board[cell / 3][cell % 3] != ' ') {
+        continue;
+      }
+      int child = oracle.lookup(TTTOracle.play(state, cell));
+      if(child < 0) {
+        continue;
+      }
+      sb.append(String.format("put %d %d: %s\n", cell / 3, cell % 3, 
+        outcome(-TTTOracle.value(child), TTTOracle.plies(child) + 1, mover)));
+    }
+    sb.append("```");
+    response.message = sb.toString();
+    return response;
+  }
+
+  private TTTResponse executeCommandHelp(Command command) {
+    TTTLog.debug("executeCommandHelp");
+    TTTResponse response = new TTTResponse(CMD.OK);
+    String msg = 
+      "```" + 
+      "HELP:\n" +
+      "    start [username to invite] // eg start or start user1\n" +
+      "    start bot [level] [size]   // eg start bot hard 5\n" +
+      "    put <row> <col>            // eg put 1 2 for your move\n" +
+      "    resign|quit                // resign or quit\n" +
+      "    status                     // prints the board state\n" +
+      "    stats [username]           // wins, losses and draws\n" +
+      "    leaderboard                // top players here and overall\n" +
+      "    hint                       // best move on a 3x3 board\n" +
+      "    analyze                    // outcome of every move on 3x3\n" +
+      "    help                       // help\n" +
+      "```";
+    response.message = msg;
+    return response;
+  }
+
+  /**
+   * executeCommand(Command command)
+   *
+   * Runs the command while holding the channel's stripe lock, so
+   * concurrent commands on one channel apply in a single order and
+   * commands on other channels proceed in parallel. A bot's reply to a
+   * put is searched after the lock is released and applied under it
+   * again.
+   */
+  private TTTResponse executeCommand(Command command) {
+    long startNS = System.nanoTime();
+    TTTResponse response = executeLocked(command, 
+      () -> executeCommandLocked(command), command.getCommand().mutates());
+    TTT board = command.getBotTurn();
+    // ERR means the put was not committed, so there is nothing to answer
+    if(board != null && response.status != CMD.ERR) {
+      int cell = searchBot(board);
+      response = executeLocked(command, 
+        () -> applyBot(command.getChannel(), board, cell), true);
+    }
+    metrics.command(command.getCommand()).record(System.nanoTime() - startNS);
+    return response;
+  }
+
+  /**
+   * Run body under the channel's lock and commit if it mutates, rerunning
+   * it on a fresh read when another instance committed first.
+   */
+  private TTTResponse executeLocked(Command command, 
+    Supplier<TTTResponse> body, boolean mutates)
+  {
+    long seq = -1;
+    TTTResponse response;
+    ReentrantLock lock = memory.getLock(command.getChannel());
+    lock.lock();
+    try {
+      for(int attempt = 0; ; attempt++) {
+        try {
+          response = body.get();
+          if(mutates) {
+            seq = memory.commit(command.getChannel());
+          }
+          break;
+        } catch(ConcurrentModificationException e) {
+          // another instance moved first: reload the board and rerun
+          memory.invalidate(command.getChannel());
+          if(attempt >= TTTConfig.commitRetries) {
+            response = new TTTResponse(CMD.ERR, "Busy, please try again.");
+            break;
+          }
+        } catch(RuntimeException e) {
+          // the store failed: do not keep serving a board it never took
+          TTTLog.warning("command in %s failed: %s", command.getChannel(), e);
+          memory.invalidate(command.getChannel());
+          response = new TTTResponse(CMD.ERR, 
+            "Could not save that, please try again.");
+          break;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    // group commit: wait for the journal outside the lock
+    memory.awaitDurable(seq);
+    return response;
+  }
+
+  private TTTResponse executeCommandLocked(Command command) {
+    CMD cmd = command.getCommand();
+
+    TTTLog.debug("executeCommand cmd %s", cmd);
+
+    CommandHandler handler = handlers[cmd.ordinal()];
+    if(handler == null) {
+      handler = handlers[CMD.HELP.ordinal()];
+    }
+    return handler.execute(command);
+  }
+
+  private boolean isValueNullOrZero(String s) {
+    if(s == null || s.length() == 0)
+      return true;
+    return false;
+  }
+
+  private boolean validateKeys(Map<String, String> map) {
+    if( isValueNullOrZero(map.get("channel_name")) ||
+        isValueNullOrZero(map.get("channel_id")) ||
+        isValueNullOrZero(map.get("user_name")) ||
+        isValueNullOrZero(map.get("command")) ||
+        isValueNullOrZero(map.get("user_id")) ||
+        isValueNullOrZero(map.get("text")))
+    {
+      return false;
+    }
+    return true;
+  }
+  
+}
+
+/**
+* index_CHANNELEXECUTOR
+* ChannelExecutor
+*
+* Runs tasks for a channel one at a time and in submission order on a
+* shared pool. Every channel with pending work has a Mailbox. A mailbox
+* is on the pool only while its queue is non-empty, and it gives up its
+* thread after TTTConfig.mailboxBatch tasks so a busy channel cannot
+* starve the others. An empty mailbox retires itself and is removed
+* from the map, so idle channels hold no memory.
+*
+* If the pool rejects a mailbox, submit throws RejectedExecutionException
+* for a new task. Tasks still queued behind one that was running fail
+* with it, so their callers do not wait out their timeout.
+*
+* Summary of methods:
+* public ChannelExecutor(int numThreads)
+* public <T> Task<T> submit(String channel, Callable<T> task)
+* public void shutdown()
+*/
+class ChannelExecutor {
+  private final ExecutorService pool;
+  private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+  public ChannelExecutor(int numThreads) {
+    // asyncMode gives FIFO scheduling of mailboxes that are never joined
+    pool = new ForkJoinPool(numThreads, 
+      ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+  }
+
+  public <T> Task<T> submit(String channel, Callable<T> task) {
+    Task<T> future = new Task<>(task);
+    while(true) {
+      Mailbox mailbox = mailboxes.computeIfAbsent(channel, Mailbox::new);
+      if(mailbox.offer(future)) {
+        return future;
+      }
+      // mailbox retired between lookup and offer, get a fresh one
+    }
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  /** A FutureTask that can be withdrawn only before it starts. */
+  static class Task<T> extends FutureTask<T> {
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    Task(Callable<T> callable) {
+      super(callable);
+    }
+
+    @Override
+    public void run() {
+      if(started.compareAndSet(false, true)) {
+        super.run();
+      }
+    }
+
+    /** Cancel unless already started, true if it will never run. */
+    public boolean withdraw() {
+      return started.compareAndSet(false, true) && cancel(false);
+    }
+
+    void fail(Throwable t) {
+      if(started.compareAndSet(false, true)) {
+        setException(t);
+      }
+    }
+  }
+
+  class Mailbox implements Runnable {
+    private final String channel;
+    private final ArrayDeque<Task<?>> queue = new ArrayDeque<>();
+    private boolean scheduled = false;
+    private boolean retired = false;
+
+    Mailbox(String channel) {
+      this.channel = channel;
+    }
+
+    synchronized boolean offer(Task<?> task) {
+      if(retired) {
+        return false;
+      }
+      queue.add(task);
+      if(!scheduled) {
+        try {
+          pool.execute(this);
+        } catch(RejectedExecutionException e) {
+          queue.removeLast();
+          if(queue.isEmpty()) {
+            retire();
+          }
+          throw e;
+        }
+        scheduled = true;
+      }
+      return true;
+    }
+
+    private synchronized Task<?> poll() {
+      Task<?> task = queue.poll();
+      if(task == null) {
+        retire();
+      }
+      return task;
+    }
+
+    private void retire() {
+      scheduled = false;
+      retired = true;
+      mailboxes.remove(channel, this);
+    }
+
+    public void run() {
+      for(int i = 0; i < TTTConfig.mailboxBatch; i++) {
+        Task<?> task = poll();
+        if(task == null) {
+          return;
+        }
+        // FutureTask keeps any exception for the waiting caller, and
+        // does nothing if the caller cancelled it
+        task.run();
+      }
+      synchronized(this) {
+        if(queue.isEmpty()) {
+          retire();
+          return;
+        }
+        try {
+          pool.execute(this);
+        } catch(RejectedExecutionException e) {
+          // shut down: fail the rest rather than leave callers waiting
+          for(Task<?> task; (task = queue.poll()) != null; ) {
+            task.fail(e);
+          }
+          retire();
+        }
+      }
+    }
+  }
+}
+
+/**
+* index_TTTDEDUP
+* TTTDedup
+*
+* Remembers the response to each request for ttlMS, so a request that
+* Slack delivers again is answered from here instead of being run a
+* second time. A request is identified by user_id, channel_id, text and
+* trigger_id. Slack gives every invocation its own trigger_id, so a
+* request that has one is always looked up. Without one, only a request
+* marked as a retry is looked up, since the same command typed twice is
+* two commands.
+*
+* A retry that arrives while the original is still running waits up to
+* waitMS for its result rather than running alongside it. Lookups are a
+* ConcurrentHashMap get, which takes no lock. Entries are also queued in
+* insertion order, which with one ttl is expiry order, and each insert
+* trims expired entries and anything past capacity off the head.
+*
+* Summary of methods:
+* public TTTDedup(int capacity, long ttlMS, long waitMS, LongAdder replays)
+* public static String key(Map<String, String> map)
+* public TTTResponse execute(String key, boolean lookup, 
+*   Supplier<TTTResponse> task)
+* public boolean contains(String key)
+* public int size()
+*/
+class TTTDedup {
+  private final ConcurrentHashMap<String, Entry> entries = 
+    new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Entry> order = 
+    new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final int capacity;
+  private final long ttlMS;
+  private final long waitMS;
+  private final LongAdder replays;
+
+  public TTTDedup(int capacity, long ttlMS, long waitMS, LongAdder replays) {
+    this.capacity = capacity;
+    this.ttlMS = ttlMS;
+    this.waitMS = waitMS;
+    this.replays = replays;
+  }
+
+  public static String key(Map<String, String> map) {
+    String trigger = map.get("trigger_id");
+    return map.get("user_id") + '\n' + map.get("channel_id") + '\n' + 
+      ((trigger == null) ? "" : trigger) + '\n' + map.get("text");
+  }
+
+  /**
+   * The response for key: a fresh earlier one if lookup is set and there
+   * is one, otherwise task's, which is then kept for later lookups.
+   */
+  public TTTResponse execute(String key, boolean lookup, 
+    Supplier<TTTResponse> task)
+  {
+    long nowMS = System.currentTimeMillis();
+    Entry mine = new Entry(key, nowMS + ttlMS);
+    if(lookup) {
+      Entry prior = entries.get(key);
+      if(prior == null || prior.expiresMS <= nowMS) {
+        prior = (prior == null) ? entries.putIfAbsent(key, mine) :
+          (entries.replace(key, prior, mine) ? null : entries.get(key));
+      }
+      if(prior != null) {
+        replays.increment();
+        return prior.await(waitMS);
+      }
+    }
+    else {
+      entries.put(key, mine);
+    }
+    order.add(mine);
+    queued.incrementAndGet();
+    trim(nowMS);
+    TTTResponse response = null;
+    try {
+      response = task.get();
+    } finally {
+      if(response == null) {
+        // nothing worth replaying, let a retry run again
+        entries.remove(key, mine);
+      }
+      mine.result.complete(response);
+    }
+    return response;
+  }
+
+  /** Would a lookup of key be answered here, now or once it finishes. */
+  public boolean contains(String key) {
+    Entry entry = entries.get(key);
+    return entry != null && entry.expiresMS > System.currentTimeMillis();
+  }
+
+  private void trim(long nowMS) {
+    while(true) {
+      Entry head = order.peek();
+      if(head == null || 
+         (head.expiresMS > nowMS && queued.get() <= capacity)) {
+        return;
+      }
+      if(order.remove(head)) {
+        queued.decrementAndGet();
+        entries.remove(head.key, head);
+      }
+    }
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  static class Entry {
+    final String key;
+    final long expiresMS;
+    final CompletableFuture<TTTResponse> result = new CompletableFuture<>();
+
+    Entry(String key, long expiresMS) {
+      this.key = key;
+      this.expiresMS = expiresMS;
+    }
+
+    TTTResponse await(long waitMS) {
+      try {
+        TTTResponse response = result.get(waitMS, TimeUnit.MILLISECONDS);
+        if(response != null) {
+          return response;
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch(ExecutionException | TimeoutException e) {
+        // fall through to busy
+      }
+      return new TTTResponse(CMD.ERR, "Still working on it...");
+    }
+  }
+}
+
+/**
+* index_TTTLIMITER
+* TTTLimiter
+*
+* Admission control in front of Processor, used by DemoServlet.doPost.
+* enter sheds a request at once when maxInFlight requests are already
+* being served. tryAcquire takes a token from the user's bucket and one
+* from the channel's, refilled at a fixed rate up to a burst, so a user
+* cannot flood a channel and a channel cannot flood the server. A
+* redelivery that TTTDedup will answer skips tryAcquire, so a retried
+* command is charged once, while a retry header alone buys nothing.
+*
+* A bucket is one AtomicLong in a ConcurrentHashMap keyed by the id
+* Slack sent, with the last refill time in the high bits and the tokens,
+* in thousandths, in the low 20, updated with a CAS. A full bucket is the
+* same as no bucket, so buckets idle long enough to refill are dropped
+* by a sweep that runs at most once every sweepMS on a request thread.
+* A request racing with the sweep may get a fresh bucket, which only
+* errs toward letting it in.
+*
+* Summary of methods:
+* public TTTLimiter(TTTMetrics metrics)
+* public boolean enter()
+* public void exit()
+* public boolean tryAcquire(String userId, String channelId)
+* public int size()
+*/
+class TTTLimiter {
+  static final TTTResponse SHED = 
+    new TTTResponse(CMD.ERR, "Server busy. Try again...");
+  static final TTTResponse LIMITED = 
+    new TTTResponse(CMD.ERR, "Too many commands. Wait a few seconds...");
+  private static final int TOKEN = 1000;
+  private static final int TOKEN_BITS = 20;
+  private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+
+  private final TTTMetrics metrics;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final ConcurrentHashMap<String, AtomicLong> users = 
+    new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, AtomicLong> channels = 
+    new ConcurrentHashMap<>();
+  private final AtomicLong lastSweepMS = new AtomicLong();
+  private final long baseNS = System.nanoTime();
+
+  public TTTLimiter(TTTMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /** False if the request should be shed. Call exit after a true. */
+  public boolean enter() {
+    if(inFlight.incrementAndGet() > TTTConfig.maxInFlight) {
+      inFlight.decrementAndGet();
+      metrics.shed.increment();
+      return false;
+    }
+    return true;
+  }
+
+  public void exit() {
+    inFlight.decrementAndGet();
+  }
+
+  /**
+   * Take a token for the user and the channel. A request turned away
+   * by its channel has still spent the user's token.
+   */
+  public boolean tryAcquire(String userId, String channelId) {
+    long nowMS = (System.nanoTime() - baseNS) / 1000000;
+    sweepIfDue(nowMS);
+    if(userId != null && !take(users, userId, nowMS, 
+      TTTConfig.userRatePerSec, TTTConfig.userBurst)) 
+    {
+      metrics.limitedUser.increment();
+      return false;
+    }
+    if(channelId != null && !take(channels, channelId, nowMS, 
+      TTTConfig.channelRatePerSec, TTTConfig.channelBurst))
+    {
+      metrics.limitedChannel.increment();
+      return false;
+    }
+    return true;
+  }
+
+  /** Tokens in thousandths refill at ratePerSec of them per ms. */
+  private static boolean take(ConcurrentHashMap<String, AtomicLong> buckets, 
+    String id, long nowMS, int ratePerSec, int burst)
+  {
+    long full = (long)burst * TOKEN;
+    AtomicLong bucket = buckets.get(id);
+    if(bucket == null) {
+      AtomicLong fresh = new AtomicLong((nowMS << TOKEN_BITS) | full);
+      bucket = buckets.putIfAbsent(id, fresh);
+      if(bucket == null) {
+        bucket = fresh;
+      }
+    }
+    while(true) {
+      long state = bucket.get();
+      long lastMS = state >>> TOKEN_BITS;
+      long tokens = Math.min(full, (state & TOKEN_MASK) + 
+        Math.max(0, nowMS - lastMS) * ratePerSec);
+      if(tokens < TOKEN) {
+        return false;
+      }
+      if(bucket.compareAndSet(state, 
+        (Math.max(nowMS, lastMS) << TOKEN_BITS) | (tokens - TOKEN))) 
+      {
+        return true;
+      }
+    }
+  }
+
+  private void sweepIfDue(long nowMS) {
+    long last = lastSweepMS.get();
+    if(nowMS - last < TTTConfig.limiterSweepMS || 
+       !lastSweepMS.compareAndSet(last, nowMS)) 
+    {
+      return;
+    }
+    sweep(users, nowMS, TTTConfig.userRatePerSec, TTTConfig.userBurst);
+    sweep(channels, nowMS, TTTConfig.channelRatePerSec, 
+      TTTConfig.channelBurst);
+  }
+
+  private static void sweep(ConcurrentHashMap<String, AtomicLong> buckets,
+    long nowMS, int ratePerSec, int burst)
+  {
+    long refillMS = (long)burst * TOKEN / ratePerSec;
+    for(Map.Entry<String, AtomicLong> e: buckets.entrySet()) {
+      if(nowMS - (e.getValue().get() >>> TOKEN_BITS) >= refillMS) {
+        buckets.remove(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  /** Buckets held, users and channels. */
+  public int size() {
+    return users.size() + channels.size();
+  }
+}
+
+/**
+* index_TTTDELIVERY
+* TTTDelivery
+*
+* Posts replies to Slack's response_url off the request threads. Posts
+* wait on a bounded queue. A fixed set of sender threads each take what
+* is queued, up to TTTConfig.deliveryBatch at a time, and send it back
+* to back. HttpURLConnection keeps idle keep-alive connections per host
+* (http.maxConnections), and every response body is read to the end so
+* its connection goes back to that pool. A burst of replies to
+* hooks.slack.com therefore reuses a few warm TLS connections.
+*
+* A post that fails with an IOException or a 5xx is queued again after
+* TTTConfig.deliveryBackoffMS, doubled on each later attempt, up to
+* TTTConfig.deliveryAttempts sends in all. The wait runs on a timer, so
+* the senders go on with other replies meanwhile. A 4xx is Slack
+* refusing the reply for good and counts as failed at once. When the
+* queue is full, post returns false and counts the reply as dropped.
+*
+* Only https://hooks.slack.com/ URLs are accepted, plus localhost when
+* the test stub is on, so a request cannot make the server post to an
+* arbitrary address.
+*
+* Summary of methods:
+* public TTTDelivery(int threads, int capacity, TTTMetrics metrics)
+* public static boolean accepts(String url)
+* public boolean post(String url, TTTResponse response)
+* public void shutdown()
+*/
+class TTTDelivery {
+  private final ArrayBlockingQueue<Post> queue;
+  private final Thread [] senders;
+  private final ScheduledThreadPoolExecutor retryTimer;
+  private final TTTMetrics metrics;
+  private volatile boolean running = true;
+
+  public TTTDelivery(int threads, int capacity, TTTMetrics metrics) {
+    this.metrics = metrics;
+    queue = new ArrayBlockingQueue<>(capacity);
+    retryTimer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "ttt-delivery-retry");
+      t.setDaemon(true);
+      return t;
+    });
+    senders = new Thread[threads];
+    for(int i = 0; i < threads; i++) {
+      senders[i] = new Thread(this::run, "ttt-delivery-" + i);
+      senders[i].setDaemon(true);
+      senders[i].start();
+    }
+  }
+
+  public static boolean accepts(String url) {
+    if(url == null) {
+      return false;
+    }
+    if(url.startsWith(TTTConfig.responseUrlPrefix)) {
+      return true;
+    }
+    return TTTConfig.useStub && (url.startsWith("http://localhost:") || 
+      url.startsWith("http://127.0.0.1:"));
+  }
+
+  public boolean post(String url, TTTResponse response) {
+    if(!queue.offer(new Post(url, response))) {
+      metrics.deliveryDropped.increment();
+      return false;
+    }
+    return true;
+  }
+
+  /** Send what is queued, then stop the senders. */
+  public void shutdown() {
+    // retries still waiting out their backoff are given up
+    metrics.deliveryFailed.add(retryTimer.shutdownNow().size());
+    running = false;
+    for(Thread sender: senders) {
+      try {
+        sender.join(TTTConfig.deliveryTimeoutMS);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void run() {
+    List<Post> batch = new ArrayList<>(TTTConfig.deliveryBatch);
+    while(running || !queue.isEmpty()) {
+      try {
+        Post first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if(first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, TTTConfig.deliveryBatch - 1);
+        for(Post post: batch) {
+          int code = send(post);
+          if(code >= 200 && code < 400) {
+            metrics.delivered.increment();
+          }
+          else if(code >= 400 && code < 500) {
+            metrics.deliveryFailed.increment();
+            TTTLog.warning("reply to %s refused with %d", post.url, code);
+          }
+          else {
+            retry(post);
+          }
+        }
+        batch.clear();
+      } catch(InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /** Queue post again after its backoff, or count it failed. */
+  private void retry(Post post) {
+    if(++post.attempts >= TTTConfig.deliveryAttempts) {
+      metrics.deliveryFailed.increment();
+      TTTLog.warning("reply to %s not delivered", post.url);
+      return;
+    }
+    long delayMS = TTTConfig.deliveryBackoffMS << (post.attempts - 1);
+    try {
+      retryTimer.schedule(() -> {
+        if(!queue.offer(post)) {
+          metrics.deliveryFailed.increment();
+          TTTLog.warning("reply to %s not delivered", post.url);
+        }
+      }, delayMS, TimeUnit.MILLISECONDS);
+    } catch(RejectedExecutionException e) {
+      // shutting down
+      metrics.deliveryFailed.increment();
+    }
+  }
+
+  /** HTTP status Slack answered post with, or -1 if there was none. */
+  private int send(Post post) {
+    HttpURLConnection conn = null;
+    try {
+      conn = (HttpURLConnection)new URL(post.url).openConnection();
+      conn.setRequestMethod("POST");
+      conn.setDoOutput(true);
+      conn.setConnectTimeout((int)TTTConfig.deliveryTimeoutMS);
+      conn.setReadTimeout((int)TTTConfig.deliveryTimeoutMS);
+      conn.setRequestProperty("Content-Type", "application/json");
+      JsonReply reply = JsonReply.encode(post.response);
+      conn.setFixedLengthStreamingMode(reply.length());
+      try(OutputStream os = conn.getOutputStream()) {
+        reply.writeTo(os);
+      }
+      int code = conn.getResponseCode();
+      drain((code < 400) ? conn.getInputStream() : conn.getErrorStream());
+      return code;
+    } catch(IOException e) {
+      TTTLog.debug("reply to %s failed: %s", post.url, e);
+      if(conn != null) {
+        try {
+          drain(conn.getErrorStream());
+        } catch(IOException ignored) {
+          // the connection is closed rather than reused
+        }
+      }
+      return -1;
+    }
+  }
+
+  private static void drain(InputStream in) throws IOException {
+    if(in == null) {
+      return;
+    }
+    try(InputStream is = in) {
+      byte [] buf = new byte[512];
+      while(is.read(buf) >= 0) {
+      }
+    }
+  }
+
+  static class Post {
+    final String url;
+    final TTTResponse response;
+    int attempts = 0;
+
+    Post(String url, TTTResponse response) {
+      this.url = url;
+      this.response = response;
+    }
+  }
+}
+
+/**
+* index_TTTREAPER
+* TTTReaper
+*
+* Expires boards that have been idle for idleMS, using a hashed timer
+* wheel of numSlots buckets, each tickMS wide. A channel is put in the
+* bucket for the time its board would go idle. When the wheel reaches
+* that bucket, Memory.expireIfIdle either removes the board or reports
+* its new deadline after later moves, and the channel is put back in
+* the wheel. Each tick only looks at the channels due in it, not at all
+* live ones.
+*
+* The wheel is made at least long enough to hold a deadline idleMS away,
+* so a board is never parked in the farthest bucket and rechecked before
+* it could expire. A board that was played since it was scheduled is
+* rechecked at its old deadline and put back once, so each live board
+* costs at most one recheck per idleMS.
+*
+* Summary of methods:
+* public TTTReaper(Memory memory, long idleMS, long tickMS, int numSlots)
+* public void start()
+* public void shutdown()
+* public long getIdleMS()
+* public void schedule(String channel, long deadlineMS)
+* void advance(long nowMS)
+*/
+class TTTReaper {
+  private final Memory memory;
+  private final long idleMS;
+  private final long tickMS;
+  private final ConcurrentLinkedQueue<String> [] wheel;
+  // channels sitting in the wheel, so a channel is queued once
+  private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+  private final long startMS;
+  private volatile long tick = 0;
+  private ScheduledExecutorService timer = null;
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public TTTReaper(Memory memory, long idleMS, long tickMS, int numSlots) {
+    this.memory = memory;
+    this.idleMS = idleMS;
+    this.tickMS = tickMS;
+    // a deadline idleMS ahead lands up to two ticks past idleMS / tickMS,
+    // and schedule keeps one bucket free, see there
+    numSlots = (int)Math.max(numSlots, (idleMS + tickMS - 1) / tickMS + 3);
+    wheel = new ConcurrentLinkedQueue[numSlots];
+    for(int i = 0; i < numSlots; i++) {
+      wheel[i] = new ConcurrentLinkedQueue<>();
+    }
+    startMS = System.currentTimeMillis();
+  }
+
+  public void start() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "ttt-reaper");
+      t.setDaemon(true);
+      return t;
+    });
+    executor.scheduleAtFixedRate(() -> advance(System.currentTimeMillis()), 
+      tickMS, tickMS, TimeUnit.MILLISECONDS);
+    timer = executor;
+  }
+
+  public void shutdown() {
+    if(timer != null) {
+      timer.shutdownNow();
+      timer = null;
+    }
+  }
+
+  public long getIdleMS() {
+    return idleMS;
+  }
+
+  public void schedule(String channel, long deadlineMS) {
+    if(pending.putIfAbsent(channel, Boolean.TRUE) != null) {
+      return;
+    }
+    long slot = (deadlineMS - startMS + tickMS - 1) / tickMS;
+    // tick is the next bucket to run. While advance drains bucket
+    // tick - 1, that bucket must not be refilled or the drain never ends.
+    long current = tick;
+    if(slot < current) {
+      slot = current;
+    }
+    else if(slot > current + wheel.length - 2) {
+      slot = current + wheel.length - 2;
+    }
+    wheel[(int)(slot % wheel.length)].add(channel);
+  }
+
+  /** Process every bucket up to nowMS. Runs on the timer thread only. */
+  void advance(long nowMS) {
+    long target = (nowMS - startMS) / tickMS;
+    while(tick <= target) {
+      ConcurrentLinkedQueue<String> bucket = wheel[(int)(tick % wheel.length)];
+      tick++;
+      String channel;
+      while((channel = bucket.poll()) != null) {
+        pending.remove(channel);
+        try {
+          long deadlineMS = memory.expireIfIdle(channel, nowMS, idleMS);
+          if(deadlineMS >= 0) {
+            schedule(channel, deadlineMS);
+          }
+        } catch(RuntimeException e) {
+          // keep the timer alive, the channel is retried on its next set
+        }
+      }
+    }
+  }
+}
+
+/**
+* index_TTTCODEC
+* TTTCodec
+*
+* Compact binary encoding of boards and history records, shared by the
+* journal, Datastore and memcache. Encoding writes into a caller's
+* ByteBuffer and decoding reads from one, so a buffer can be reused and
+* nothing is built besides the decoded board or record. A 3x3 game
+* between two short user ids is around 50 bytes.
+*
+* Board, version 2:
+*   byte    version
+*   byte    size, low 4 bits, and winLength, high 4 bits
+*   byte    flags, FLAG_DONE
+*   long    gameId
+*   varint  timeLastMS
+*   names   count byte, then varint length and UTF-8 bytes of each name
+*   4 bytes player1, player2, invitee, winner as index into names,
+*           NO_NAME if unset
+*   cells   2 bits per cell, row-major, 0 empty, 1 X, 2 O
+*   moves   cell index of each move in order, a nibble each when the
+*           board has at most 16 cells, else a byte each
+* The number of moves is the number of marked cells. Decoding replays
+* the moves through TTT.restore and checks the result against the
+* cells.
+*
+* Record, version 2:
+*   byte    version
+*   byte    size
+*   byte    flags, FLAG_DRAW
+*   varint  timeEndMS
+*   names   as above
+*   3 bytes channel, winner, loser as index into names
+*   byte    number of moves, then moves as above
+*
+* Version 1 boards, written with DataOutput before this format, can
+* still be read.
+*
+* Summary of methods:
+* public static void writeBoard(ByteBuffer buf, TTT board)
+* public static TTT readBoard(ByteBuffer buf)
+* public static byte [] encodeBoard(TTT board)
+* public static void writeRecord(ByteBuffer buf, TTTRecord record)
+* public static TTTRecord readRecord(ByteBuffer buf)
+*/
+class TTTCodec {
+  static final int VERSION = 2;
+  static final int VERSION_1 = 1;
+  static final int FLAG_DONE = 1;
+  static final int FLAG_DRAW = 1;
+  static final int NO_NAME = 0xff;
+  // a board has player1, player2, invitee and winner, a record 3 names
+  static final int MAX_NAMES = 4;
+
+  /** Per-thread buffers for encodeBoard and decoding names. */
+  private static class Scratch {
+    ByteBuffer buf = ByteBuffer.allocate(1024);
+    String [] names = new String[MAX_NAMES];
+    byte [] moves = new byte[TTTBitBoard.MAX_SIZE * TTTBitBoard.MAX_SIZE];
+    byte [] utf8 = new byte[256];
+  }
+
+  private static final ThreadLocal<Scratch> scratch = 
+    ThreadLocal.withInitial(Scratch::new);
+
+  /** Board encoded into a new array sized to fit. */
+  public static byte [] encodeBoard(TTT board) {
+    Scratch s = scratch.get();
+    while(true) {
+      s.buf.clear();
+      try {
+        writeBoard(s.buf, board);
+        return Arrays.copyOf(s.buf.array(), s.buf.position());
+      } catch(BufferOverflowException e) {
+        // only long names get here
+        s.buf = ByteBuffer.allocate(s.buf.capacity() * 2);
+      }
+    }
+  }
+
+  public static void writeBoard(ByteBuffer buf, TTT board) {
+    int size = board.getSize();
+    buf.put((byte)VERSION);
+    buf.put((byte)(size | (board.getWinLength() << 4)));
+    buf.put((byte)(board.getIsDone() ? FLAG_DONE : 0));
+    buf.putLong(board.getGameId());
+    putVarLong(buf, board.getTimeLastMS());
+    String [] names = scratch.get().names;
+    int count = 0;
+    count = addName(names, count, board.getPlayer1());
+    count = addName(names, count, board.getPlayer2());
+    count = addName(names, count, board.getInvitee());
+    count = addName(names, count, board.getWinner());
+    putNames(buf, names, count);
+    buf.put((byte)nameIndex(names, count, board.getPlayer1()));
+    buf.put((byte)nameIndex(names, count, board.getPlayer2()));
+    buf.put((byte)nameIndex(names, count, board.getInvitee()));
+    buf.put((byte)nameIndex(names, count, board.getWinner()));
+    Arrays.fill(names, null);
+
+    int bits = 0;
+    int filled = 0;
+    for(int row = 0; row < size; row++) {
+      for(int col = 0; col < size; col++) {
+        char c = board.board[row][col];
+        int cell = (c == 'X') ? 1 : (c == 'O') ? 2 : 0;
+        bits |= cell << (2 * filled);
+        if(++filled == 4) {
+          buf.put((byte)bits);
+          bits = 0;
+          filled = 0;
+        }
+      }
+    }
+    if(filled > 0) {
+      buf.put((byte)bits);
+    }
+    putMoves(buf, board.moves, board.numPopulated, size);
+  }
+
+  public static TTT readBoard(ByteBuffer buf) throws IOException {
+    try {
+      return decodeBoard(buf);
+    } catch(BufferUnderflowException e) {
+      throw new IOException("Truncated board", e);
+    } catch(IllegalArgumentException e) {
+      // a size and win length that TTT does not support
+      throw new IOException("Bad board", e);
+    }
+  }
+
+  private static TTT decodeBoard(ByteBuffer buf) throws IOException {
+    int version = buf.get() & 0xff;
+    if(version == VERSION_1) {
+      return readBoardVersion1(buf);
+    }
+    if(version != VERSION) {
+      throw new IOException("Unknown board version " + version);
+    }
+    int sizes = buf.get() & 0xff;
+    int size = sizes & 0xf;
+    int winLength = sizes >>> 4;
+    if(size < 1 || size > TTTBitBoard.MAX_SIZE) {
+      throw new IOException("Bad board size " + size);
+    }
+    int flags = buf.get();
+    long gameId = buf.getLong();
+    long timeLastMS = getVarLong(buf);
+    Scratch s = scratch.get();
+    int count = getNames(buf, s);
+    String player1 = name(s.names, count, buf.get());
+    String player2 = name(s.names, count, buf.get());
+    String invitee = name(s.names, count, buf.get());
+    String winner = name(s.names, count, buf.get());
+    Arrays.fill(s.names, null);
+
+    int cellsAt = buf.position();
+    int numCells = size * size;
+    int numMoves = 0;
+    for(int i = 0; i < numCells; i++) {
+      if(cell(buf, cellsAt, i) != 0) {
+        numMoves++;
+      }
+    }
+    buf.position(cellsAt + (numCells + 3) / 4);
+    getMoves(buf, s.moves, numMoves, size);
+    checkPlayers(numMoves, player1, player2);
+    TTT ttt = TTT.restore(size, winLength, gameId, player1, player2, invitee,
+      s.moves, numMoves, (flags & FLAG_DONE) != 0, winner, timeLastMS);
+    for(int i = 0; i < numCells; i++) {
+      char c = ttt.board[i / size][i % size];
+      int cell = (c == 'X') ? 1 : (c == 'O') ? 2 : 0;
+      if(cell != cell(buf, cellsAt, i)) {
+        throw new IOException("Board cells do not match its moves");
+      }
+    }
+    return ttt;
+  }
+
+  /** Moves are replayed as the players, so both must be named. */
+  private static void checkPlayers(int numMoves, String player1, 
+    String player2) throws IOException
+  {
+    if(numMoves > 0 && (player1 == null || player2 == null)) {
+      throw new IOException("Moves on a board without both players");
+    }
+  }
+
+  private static int cell(ByteBuffer buf, int cellsAt, int i) {
+    return (buf.get(cellsAt + i / 4) >>> (2 * (i % 4))) & 3;
+  }
+
+  public static void writeRecord(ByteBuffer buf, TTTRecord record) {
+    buf.put((byte)VERSION);
+    buf.put(record.size);
+    buf.put((byte)(record.isDraw ? FLAG_DRAW : 0));
+    putVarLong(buf, record.timeEndMS);
+    String [] names = scratch.get().names;
+    int count = 0;
+    count = addName(names, count, record.channel);
+    count = addName(names, count, record.winnerUser);
+    count = addName(names, count, record.loserUser);
+    putNames(buf, names, count);
+    buf.put((byte)nameIndex(names, count, record.channel));
+    buf.put((byte)nameIndex(names, count, record.winnerUser));
+    buf.put((byte)nameIndex(names, count, record.loserUser));
+    Arrays.fill(names, null);
+    buf.put((byte)record.moves.length);
+    putMoves(buf, record.moves, record.moves.length, record.size);
+  }
+
+  public static TTTRecord readRecord(ByteBuffer buf) throws IOException {
+    try {
+      return decodeRecord(buf);
+    } catch(BufferUnderflowException e) {
+      throw new IOException("Truncated record", e);
+    }
+  }
+
+  private static TTTRecord decodeRecord(ByteBuffer buf) throws IOException {
+    int version = buf.get() & 0xff;
+    if(version != VERSION) {
+      throw new IOException("Unknown record version " + version);
+    }
+    TTTRecord record = new TTTRecord();
+    record.size = buf.get();
+    record.isDraw = (buf.get() & FLAG_DRAW) != 0;
+    record.timeEndMS = getVarLong(buf);
+    Scratch s = scratch.get();
+    int count = getNames(buf, s);
+    record.channel = name(s.names, count, buf.get());
+    record.winnerUser = name(s.names, count, buf.get());
+    record.loserUser = name(s.names, count, buf.get());
+    Arrays.fill(s.names, null);
+    record.moves = new byte[buf.get() & 0xff];
+    getMoves(buf, record.moves, record.moves.length, record.size);
+    return record;
+  }
+
+  private static int addName(String [] names, int count, String name) {
+    if(name == null || nameIndex(names, count, name) != NO_NAME) {
+      return count;
+    }
+    names[count] = name;
+    return count + 1;
+  }
+
+  private static int nameIndex(String [] names, int count, String name) {
+    if(name != null) {
+      for(int i = 0; i < count; i++) {
+        if(names[i].equals(name)) {
+          return i;
+        }
+      }
+    }
+    return NO_NAME;
+  }
+
+  private static String name(String [] names, int count, byte index) 
+    throws IOException
+  {
+    int i = index & 0xff;
+    if(i == NO_NAME) {
+      return null;
+    }
+    if(i >= count) {
+      throw new IOException("Bad name index " + i);
+    }
+    return names[i];
+  }
+
+  private static void putNames(ByteBuffer buf, String [] names, int count) {
+    buf.put((byte)count);
+    for(int i = 0; i < count; i++) {
+      String name = names[i];
+      int length = utf8Length(name);
+      putVarLong(buf, length);
+      for(int j = 0; j < name.length(); j++) {
+        char c = name.charAt(j);
+        if(c < 0x80) {
+          buf.put((byte)c);
+        }
+        else if(c < 0x800) {
+          buf.put((byte)(0xc0 | (c >> 6)));
+          buf.put((byte)(0x80 | (c & 0x3f)));
+        }
+        else if(Character.isHighSurrogate(c) && j + 1 < name.length()) {
+          int cp = Character.toCodePoint(c, name.charAt(++j));
+          buf.put((byte)(0xf0 | (cp >> 18)));
+          buf.put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+          buf.put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+          buf.put((byte)(0x80 | (cp & 0x3f)));
+        }
+        else {
+          buf.put((byte)(0xe0 | (c >> 12)));
+          buf.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+          buf.put((byte)(0x80 | (c & 0x3f)));
+        }
+      }
+    }
+  }
+
+  private static int utf8Length(String s) {
+    int length = 0;
+    for(int j = 0; j < s.length(); j++) {
+      char c = s.charAt(j);
+      if(c < 0x80) {
+        length += 1;
+      }
+      else if(c < 0x800) {
+        length += 2;
+      }
+      else if(Character.isHighSurrogate(c) && j + 1 < s.length()) {
+        length += 4;
+        j++;
+      }
+      else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /** Read the name table into s.names, interned. Returns the count. */
+  private static int getNames(ByteBuffer buf, Scratch s) throws IOException {
+    int count = buf.get() & 0xff;
+    if(count > MAX_NAMES) {
+      throw new IOException("Too many names " + count);
+    }
+    for(int i = 0; i < count; i++) {
+      int length = (int)getVarLong(buf);
+      if(length > buf.remaining()) {
+        throw new IOException("Bad name length " + length);
+      }
+      if(s.utf8.length < length) {
+        s.utf8 = new byte[length];
+      }
+      buf.get(s.utf8, 0, length);
+      s.names[i] = new String(s.utf8, 0, length, StandardCharsets.UTF_8).intern();
+    }
+    return count;
+  }
+
+  private static void putMoves(ByteBuffer buf, byte [] moves, int numMoves, 
+    int size)
+  {
+    if(size * size > 16) {
+      buf.put(moves, 0, numMoves);
+      return;
+    }
+    for(int i = 0; i < numMoves; i += 2) {
+      int pair = moves[i];
+      if(i + 1 < numMoves) {
+        pair |= moves[i + 1] << 4;
+      }
+      buf.put((byte)pair);
+    }
+  }
+
+  private static void getMoves(ByteBuffer buf, byte [] moves, int numMoves, 
+    int size) throws IOException
+  {
+    int numCells = size * size;
+    if(numMoves > numCells || numMoves > moves.length) {
+      throw new IOException("Bad move count " + numMoves);
+    }
+    if(numCells > 16) {
+      buf.get(moves, 0, numMoves);
+    }
+    else {
+      for(int i = 0; i < numMoves; i += 2) {
+        int pair = buf.get();
+        moves[i] = (byte)(pair & 0xf);
+        if(i + 1 < numMoves) {
+          moves[i + 1] = (byte)((pair >>> 4) & 0xf);
+        }
+      }
+    }
+    for(int i = 0; i < numMoves; i++) {
+      if(moves[i] < 0 || moves[i] >= numCells) {
+        throw new IOException("Bad move " + moves[i]);
+      }
+    }
+  }
+
+  /** Unsigned LEB128: 7 bits a byte, low bits first. */
+  static void putVarLong(ByteBuffer buf, long v) {
+    while((v & ~0x7fL) != 0) {
+      buf.put((byte)((v & 0x7f) | 0x80));
+      v >>>= 7;
+    }
+    buf.put((byte)v);
+  }
+
+  static long getVarLong(ByteBuffer buf) throws IOException {
+    long v = 0;
+    for(int shift = 0; shift < 64; shift += 7) {
+      byte b = buf.get();
+      v |= (long)(b & 0x7f) << shift;
+      if(b >= 0) {
+        return v;
+      }
+    }
+    throw new IOException("Varint too long");
+  }
+
+  /** The DataOutput layout used before version 2. */
+  private static TTT readBoardVersion1(ByteBuffer buf) throws IOException {
+    int size = buf.get() & 0xff;
+    int winLength = buf.get() & 0xff;
+    if(size < 1 || size > TTTBitBoard.MAX_SIZE) {
+      throw new IOException("Bad board size " + size);
+    }
+    long gameId = buf.getLong();
+    String player1 = readStringVersion1(buf);
+    String player2 = readStringVersion1(buf);
+    String invitee = readStringVersion1(buf);
+    String winner = readStringVersion1(buf);
+    boolean isDone = buf.get() != 0;
+    long timeLastMS = buf.getLong();
+    byte [] moves = new byte[buf.get() & 0xff];
+    buf.get(moves);
+    checkPlayers(moves.length, player1, player2);
+    for(byte move: moves) {
+      if(move < 0 || move >= size * size) {
+        throw new IOException("Bad move " + move);
+      }
+    }
+    return TTT.restore(size, winLength, gameId, player1, player2, invitee,
+      moves, moves.length, isDone, winner, timeLastMS);
+  }
+
+  private static String readStringVersion1(ByteBuffer buf) throws IOException {
+    if(buf.get() == 0) {
+      return null;
+    }
+    int length = buf.getShort() & 0xffff;
+    byte [] bytes = new byte[length];
+    buf.get(bytes);
+    // writeUTF differs from UTF-8 only for NUL and supplementary chars
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
+
+/**
+* index_TTTJOURNAL
+* TTTJournal
+*
+* Write-ahead log and snapshots, so games survive instance restarts.
+*
+* Every committed change appends the channel's whole board image, or a
+* clear record when the board was removed, to journal-<gen>.log. Each
+* record is framed as length, CRC32 and body, so a torn tail is found
+* and dropped on recovery. Since a record is a full image, replaying it
+* more than once gives the same state.
+*
+* Appends go to an in-memory buffer. A flusher thread writes the buffer
+* and fsyncs it at most every flushMS, so one fsync covers every append
+* since the last one (group commit). With sync set, awaitDurable blocks
+* a caller until its record is on disk.
+*
+* A snapshot first rotates to a new journal generation, then writes
+* every board and history record to snapshot-<gen>.dat (see TTTSnapshot)
+* and deletes the older files. Recovery maps the newest snapshot, leaving
+* its boards on disk until first used, and replays the journals from its
+* generation on. Anything that changed while the snapshot was written
+* is in the new journal too, and replaying it again is harmless.
+*
+* Summary of methods:
+* public TTTJournal(File dir, long flushMS, boolean sync)
+* public void recover(Memory memory)
+* public void start(Memory memory, long snapshotIntervalMS)
+* public long appendBoard(String channel, TTT board)
+* public long appendClear(String channel)
+* public void awaitDurable(long seq)
+* public void snapshot(Memory memory)
+* public void close()
+*/
+class TTTJournal {
+  private static final byte REC_BOARD = 1;
+  private static final byte REC_CLEAR = 2;
+  private static final String LOG_PREFIX = "journal-";
+  private static final String LOG_SUFFIX = ".log";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".dat";
+
+  private final File dir;
+  private final long flushMS;
+  private final boolean sync;
+  // guards pending, appendSeq, durableSeq; appenders only take this
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+  private long appendSeq = 0;
+  private long durableSeq = 0;
+  private boolean closed = false;
+  // held for a whole write+fsync cycle, so batches reach the files in order
+  private final Object ioLock = new Object();
+  private FileChannel log = null;
+  private long generation = 0;
+  private Thread flusher = null;
+  private ScheduledExecutorService snapshotter = null;
+
+  public TTTJournal(File dir, long flushMS, boolean sync) throws IOException {
+    this.dir = dir;
+    this.flushMS = flushMS;
+    this.sync = sync;
+    if(!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create " + dir);
+    }
+  }
+
+  /** Load the newest snapshot and replay the journals after it. */
+  public void recover(Memory memory) throws IOException {
+    long snapshotGen = -1;
+    for(long gen: generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+      snapshotGen = gen;
+    }
+    if(snapshotGen >= 0) {
+      memory.setSnapshot(
+        TTTSnapshot.open(file(SNAPSHOT_PREFIX, snapshotGen, SNAPSHOT_SUFFIX)));
+      generation = snapshotGen;
+    }
+    int records = 0;
+    for(long gen: generations(LOG_PREFIX, LOG_SUFFIX)) {
+      if(gen >= snapshotGen) {
+        records += replay(memory, file(LOG_PREFIX, gen, LOG_SUFFIX));
+      }
+      generation = Math.max(generation, gen);
+    }
+    memory.rebuildStats();
+    TTTLog.info("journal recovered snapshot %d and %d records", 
+      snapshotGen, records);
+    // never append to a file that may have a torn tail
+    generation++;
+  }
+
+  /** Open the journal for appends and start the background threads. */
+  public void start(Memory memory, long snapshotIntervalMS) throws IOException {
+    synchronized(ioLock) {
+      log = openLog(generation);
+    }
+    flusher = new Thread(this::flushLoop, "ttt-journal");
+    flusher.setDaemon(true);
+    flusher.start();
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread t = new Thread(r, "ttt-snapshot");
+      t.setDaemon(true);
+      return t;
+    });
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        snapshot(memory);
+      } catch(IOException | RuntimeException e) {
+        TTTLog.warning("snapshot failed: %s", e);
+      }
+    }, snapshotIntervalMS, snapshotIntervalMS, TimeUnit.MILLISECONDS);
+    snapshotter = executor;
+  }
+
+  public long appendBoard(String channel, TTT board) {
+    return append(REC_BOARD, channel, TTTCodec.encodeBoard(board));
+  }
+
+  public long appendClear(String channel) {
+    return append(REC_CLEAR, channel, null);
+  }
+
+  private long append(byte type, String channel, byte [] payload) {
+    ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+    try {
+      DataOutputStream out = new DataOutputStream(body);
+      out.writeByte(type);
+      out.writeUTF(channel);
+      if(payload != null) {
+        out.write(payload);
+      }
+    } catch(IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    byte [] bytes = body.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length);
+    synchronized(this) {
+      if(closed) {
+        return -1;
       }
-      command.setCommand(CMD.START);
+      writeInt(pending, bytes.length);
+      writeInt(pending, (int)crc.getValue());
+      pending.write(bytes, 0, bytes.length);
+      appendSeq++;
+      notifyAll();
+      return appendSeq;
     }
-    else if(CMD.PUT.equals(sary[0])) {
-      if(szary != 3) {
-        return null;
+  }
+
+  /** Block until seq is on disk. Returns at once unless sync is set. */
+  public synchronized void awaitDurable(long seq) {
+    if(!sync) {
+      return;
+    }
+    boolean interrupted = false;
+    while(durableSeq < seq && !closed) {
+      try {
+        wait();
+      } catch(InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if(interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void flushLoop() {
+    while(true) {
+      synchronized(this) {
+        while(pending.size() == 0 && !closed) {
+          try {
+            wait();
+          } catch(InterruptedException e) {
+            return;
+          }
+        }
+        if(closed && pending.size() == 0) {
+          return;
+        }
       }
       try {
-        int row = Integer.parseInt(sary[1]);
-        int col = Integer.parseInt(sary[2]);
-        Coord coord = new Coord(row, col);
-        command.setCommand(CMD.PUT, coord);
-      } catch(Exception e) {
-        return null;
+        flush();
+        Thread.sleep(flushMS);
+      } catch(IOException e) {
+        TTTLog.warning("journal write failed: %s", e);
+      } catch(InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /** Write and fsync everything appended so far. */
+  private void flush() throws IOException {
+    synchronized(ioLock) {
+      byte [] batch;
+      long upTo;
+      synchronized(this) {
+        batch = pending.toByteArray();
+        pending.reset();
+        upTo = appendSeq;
+      }
+      if(batch.length > 0 && log != null) {
+        ByteBuffer buf = ByteBuffer.wrap(batch);
+        while(buf.hasRemaining()) {
+          log.write(buf);
+        }
+        log.force(false);
+      }
+      synchronized(this) {
+        durableSeq = upTo;
+        notifyAll();
       }
     }
-    else if(CMD.RESTART.equals(sary[0])) {
-      command.setCommand(CMD.RESTART);
+  }
+
+  /**
+   * Write a snapshot of memory and drop the files it supersedes. Boards
+   * are copied one channel at a time under the channel's lock, so
+   * commands keep running while the snapshot is taken.
+   */
+  public void snapshot(Memory memory) throws IOException {
+    long gen;
+    synchronized(ioLock) {
+      flush();
+      gen = generation + 1;
+      FileChannel next = openLog(gen);
+      log.close();
+      log = next;
+      generation = gen;
+    }
+    File tmp = new File(dir, SNAPSHOT_PREFIX + gen + ".tmp");
+    TTTSnapshot.write(tmp, gen, memory);
+    Files.move(tmp.toPath(), 
+      file(SNAPSHOT_PREFIX, gen, SNAPSHOT_SUFFIX).toPath(),
+      StandardCopyOption.ATOMIC_MOVE);
+    for(long old: generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+      if(old < gen) {
+        file(SNAPSHOT_PREFIX, old, SNAPSHOT_SUFFIX).delete();
+      }
+    }
+    for(long old: generations(LOG_PREFIX, LOG_SUFFIX)) {
+      if(old < gen) {
+        file(LOG_PREFIX, old, LOG_SUFFIX).delete();
+      }
     }
-    else if(CMD.QUIT.equals(sary[0])) {
-      command.setCommand(CMD.QUIT);
+  }
+
+  /** Flush what is pending and stop the background threads. */
+  public void close() {
+    if(snapshotter != null) {
+      snapshotter.shutdownNow();
     }
-    else if(CMD.RESIGN.equals(sary[0])) {
-      command.setCommand(CMD.RESIGN);
+    try {
+      flush();
+    } catch(IOException e) {
+      TTTLog.warning("journal flush on close failed: %s", e);
     }
-    else if(CMD.STATUS.equals(sary[0])) {
-      command.setCommand(CMD.STATUS);
+    synchronized(this) {
+      closed = true;
+      notifyAll();
     }
-    else if(CMD.HELP.equals(sary[0])) {
-      command.setCommand(CMD.HELP);
+    synchronized(ioLock) {
+      try {
+        if(log != null) {
+          log.close();
+          log = null;
+        }
+      } catch(IOException e) {
+        // nothing left to do
+      }
     }
-   
-    if(command.getCommand() == null) {
+  }
+
+  /** Apply every intact record in file. Returns the number applied. */
+  private int replay(Memory memory, File file) throws IOException {
+    int count = 0;
+    try(DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file))))
+    {
+      while(true) {
+        byte [] body;
+        int crcValue;
+        try {
+          int len = in.readInt();
+          crcValue = in.readInt();
+          if(len < 0 || len > TTTConfig.journalMaxRecord) {
+            break;
+          }
+          body = new byte[len];
+          in.readFully(body);
+        } catch(EOFException e) {
+          break;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        if((int)crc.getValue() != crcValue) {
+          TTTLog.warning("journal %s: bad record after %d, rest dropped", 
+            file, count);
+          break;
+        }
+        DataInputStream rec = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = rec.readByte();
+        String channel = rec.readUTF();
+        if(type == REC_BOARD) {
+          int payloadAt = body.length - rec.available();
+          memory.replayBoard(channel, TTTCodec.readBoard(
+            ByteBuffer.wrap(body, payloadAt, body.length - payloadAt)));
+        }
+        else if(type == REC_CLEAR) {
+          memory.replayClear(channel);
+        }
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private FileChannel openLog(long gen) throws IOException {
+    return FileChannel.open(file(LOG_PREFIX, gen, LOG_SUFFIX).toPath(),
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+      StandardOpenOption.APPEND);
+  }
+
+  private File file(String prefix, long gen, String suffix) {
+    return new File(dir, prefix + gen + suffix);
+  }
+
+  /** Generations of prefix<gen>suffix files in dir, ascending. */
+  private List<Long> generations(String prefix, String suffix) {
+    List<Long> gens = new ArrayList<>();
+    String [] names = dir.list();
+    if(names == null) {
+      return gens;
+    }
+    for(String name: names) {
+      if(name.startsWith(prefix) && name.endsWith(suffix)) {
+        try {
+          gens.add(Long.parseLong(
+            name.substring(prefix.length(), name.length() - suffix.length())));
+        } catch(NumberFormatException e) {
+          // not one of ours
+        }
+      }
+    }
+    Collections.sort(gens);
+    return gens;
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int v) {
+    out.write(v >>> 24);
+    out.write(v >>> 16);
+    out.write(v >>> 8);
+    out.write(v);
+  }
+}
+
+/**
+* index_TTTSNAPSHOT
+* TTTSnapshot
+*
+* Memory-mapped snapshot with a fixed binary layout, so a restart maps
+* the file and serves each channel from it on first use instead of
+* decoding every channel up front. No board is decoded at startup; only
+* Memory.rebuildStats reads through the records once to count them.
+*
+* Layout, all big-endian:
+*   header      HEADER_BYTES, counts and section offsets
+*   table       open addressing hash of channel to entry index + 1
+*   entries     ENTRY_BYTES each, one per channel with a board or history
+*   records     RECORD_BYTES each, history records grouped by channel
+*   strings     u16 length then UTF-8 bytes, referenced by offset
+* Names are written once and referenced by offset from entries and
+* records. Fixed sizes mean an entry is located by arithmetic alone.
+*
+* The header carries a CRC32 of itself and the table, checked by open.
+* Each entry carries a CRC32 of itself, its records and the names they
+* reference, checked by verify when the channel is loaded, so a torn or
+* damaged file loses the channels it damaged rather than serving wrong
+* boards.
+*
+* A channel's entry is claimed the first time Memory reads it. From then
+* on memory holds the channel and the entry is ignored, also by the next
+* snapshot write, which copies the unclaimed entries over.
+*
+* Summary of methods:
+* public static TTTSnapshot open(File file)
+* public static void write(File file, long gen, Memory memory)
+* public int find(String channel)
+* public boolean verify(int entry)
+* public boolean claim(int entry)
+* public void claimAll()
+* public boolean isClaimed(int entry)
+* public int getNumEntries()
+* public String getChannel(int entry)
+* public boolean isDone(int entry)
+* public TTT getBoard(int entry)
+* public List<TTTRecord> getRecords(int entry)
+* public int getUnclaimedBoards()
+* public int getUnclaimedRecords()
+*/
+class TTTSnapshot {
+  static final int MAGIC = 0x54545453;
+  static final int VERSION = 3;
+  static final int HEADER_BYTES = 64;
+  static final int ENTRY_BYTES = 128;
+  static final int RECORD_BYTES = 96;
+  static final int MAX_MOVES = TTTBitBoard.MAX_SIZE * TTTBitBoard.MAX_SIZE;
+
+  // header fields
+  private static final int H_MAGIC = 0;
+  private static final int H_VERSION = 4;
+  private static final int H_GEN = 8;
+  private static final int H_ENTRIES = 16;
+  private static final int H_SLOTS = 20;
+  private static final int H_RECORDS = 24;
+  private static final int H_BOARDS = 28;
+  private static final int H_RECORDS_AT = 32;
+  private static final int H_STRINGS_AT = 40;
+  private static final int H_LENGTH = 48;
+  private static final int H_CRC = 56;
+  // entry fields
+  private static final int E_CHANNEL = 0;
+  private static final int E_HASH = 4;
+  private static final int E_FLAGS = 8;
+  private static final int E_SIZE = 9;
+  private static final int E_WIN_LENGTH = 10;
+  private static final int E_NUM_MOVES = 11;
+  private static final int E_PLAYER1 = 12;
+  private static final int E_PLAYER2 = 16;
+  private static final int E_INVITEE = 20;
+  private static final int E_WINNER = 24;
+  private static final int E_RECORD_START = 28;
+  private static final int E_RECORD_COUNT = 32;
+  private static final int E_GAME_ID = 40;
+  private static final int E_TIME_LAST = 48;
+  private static final int E_MOVES = 56;
+  private static final int E_CRC = 120;
+  private static final int FLAG_BOARD = 1;
+  private static final int FLAG_DONE = 2;
+  // record fields
+  private static final int R_WINNER = 0;
+  private static final int R_LOSER = 4;
+  private static final int R_DRAW = 8;
+  private static final int R_SIZE = 9;
+  private static final int R_NUM_MOVES = 10;
+  private static final int R_TIME_END = 16;
+  private static final int R_MOVES = 24;
+
+  private final ByteBuffer buf;
+  private final int numEntries;
+  private final int slotMask;
+  private final int entriesAt;
+  private final int recordsAt;
+  private final int stringsAt;
+  private final Set<Integer> claimed = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger unclaimedBoards;
+  private final AtomicInteger unclaimedRecords;
+
+  private TTTSnapshot(ByteBuffer buf) {
+    this.buf = buf;
+    numEntries = buf.getInt(H_ENTRIES);
+    slotMask = buf.getInt(H_SLOTS) - 1;
+    entriesAt = HEADER_BYTES + 4 * (slotMask + 1);
+    recordsAt = (int)buf.getLong(H_RECORDS_AT);
+    stringsAt = (int)buf.getLong(H_STRINGS_AT);
+    unclaimedBoards = new AtomicInteger(buf.getInt(H_BOARDS));
+    unclaimedRecords = new AtomicInteger(buf.getInt(H_RECORDS));
+  }
+
+  /** Map file read-only. Only the header is read here. */
+  public static TTTSnapshot open(File file) throws IOException {
+    try(FileChannel channel = FileChannel.open(file.toPath(), 
+      StandardOpenOption.READ))
+    {
+      long length = channel.size();
+      if(length < HEADER_BYTES || length > Integer.MAX_VALUE) {
+        throw new IOException("Bad snapshot length " + length + " " + file);
+      }
+      // the mapping stays valid after the channel is closed
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+      if(buf.getInt(H_MAGIC) != MAGIC || buf.getInt(H_VERSION) != VERSION) {
+        throw new IOException("Not a version " + VERSION + " snapshot " + file);
+      }
+      if(buf.getLong(H_LENGTH) != length) {
+        throw new IOException("Truncated snapshot " + file);
+      }
+      TTTSnapshot snapshot;
+      try {
+        snapshot = new TTTSnapshot(buf);
+        if(snapshot.headerCrc() != buf.getInt(H_CRC)) {
+          throw new IOException("Corrupt snapshot header " + file);
+        }
+      } catch(IndexOutOfBoundsException | IllegalArgumentException e) {
+        throw new IOException("Corrupt snapshot header " + file, e);
+      }
+      return snapshot;
+    }
+  }
+
+  /** Entry index of channel, or -1 if the snapshot does not have it. */
+  public int find(String channel) {
+    int hash = hash(channel);
+    for(int slot = hash & slotMask; ; slot = (slot + 1) & slotMask) {
+      int entry = buf.getInt(HEADER_BYTES + 4 * slot) - 1;
+      if(entry < 0) {
+        return -1;
+      }
+      int at = entriesAt + entry * ENTRY_BYTES;
+      if(buf.getInt(at + E_HASH) == hash && isChannel(at, channel)) {
+        return entry;
+      }
+    }
+  }
+
+  private boolean isChannel(int at, String channel) {
+    try {
+      return channel.equals(readString(buf.getInt(at + E_CHANNEL)));
+    } catch(IndexOutOfBoundsException | IllegalArgumentException e) {
+      // damaged entry; verify would reject it anyway
+      return false;
+    }
+  }
+
+  /** Does entry match its checksum. */
+  public boolean verify(int entry) {
+    try {
+      return entryCrc(entry) == 
+        buf.getInt(entriesAt + entry * ENTRY_BYTES + E_CRC);
+    } catch(IndexOutOfBoundsException | IllegalArgumentException e) {
+      // offsets damaged so badly they point outside the file
+      return false;
+    }
+  }
+
+  /** CRC32 of the header up to H_CRC and of the table. */
+  private int headerCrc() {
+    CRC32 crc = new CRC32();
+    crc.update(slice(0, H_CRC));
+    crc.update(slice(HEADER_BYTES, 4 * (slotMask + 1)));
+    return (int)crc.getValue();
+  }
+
+  /**
+   * CRC32 of the entry up to E_CRC, its records, and each name they
+   * reference with its length.
+   */
+  private int entryCrc(int entry) {
+    CRC32 crc = new CRC32();
+    int at = entriesAt + entry * ENTRY_BYTES;
+    crc.update(slice(at, E_CRC));
+    updateString(crc, buf.getInt(at + E_CHANNEL));
+    if((buf.get(at + E_FLAGS) & FLAG_BOARD) != 0) {
+      updateString(crc, buf.getInt(at + E_PLAYER1));
+      updateString(crc, buf.getInt(at + E_PLAYER2));
+      updateString(crc, buf.getInt(at + E_INVITEE));
+      updateString(crc, buf.getInt(at + E_WINNER));
+    }
+    int start = buf.getInt(at + E_RECORD_START);
+    int count = buf.getInt(at + E_RECORD_COUNT);
+    if(count < 0 || start < 0 || 
+       recordsAt + ((long)start + count) * RECORD_BYTES > stringsAt) 
+    {
+      throw new IndexOutOfBoundsException("records " + start + "+" + count);
+    }
+    crc.update(slice(recordsAt + start * RECORD_BYTES, count * RECORD_BYTES));
+    for(int i = 0; i < count; i++) {
+      int r = recordsAt + (start + i) * RECORD_BYTES;
+      updateString(crc, buf.getInt(r + R_WINNER));
+      updateString(crc, buf.getInt(r + R_LOSER));
+    }
+    return (int)crc.getValue();
+  }
+
+  private void updateString(CRC32 crc, int ref) {
+    if(ref >= 0) {
+      int at = stringsAt + ref;
+      crc.update(slice(at, 2 + (buf.getShort(at) & 0xffff)));
+    }
+  }
+
+  private ByteBuffer slice(int at, int length) {
+    ByteBuffer view = buf.duplicate();
+    view.limit(at + length);
+    view.position(at);
+    return view;
+  }
+
+  /** True for the one caller that gets to load entry into memory. */
+  public boolean claim(int entry) {
+    if(!claimed.add(entry)) {
+      return false;
+    }
+    int at = entriesAt + entry * ENTRY_BYTES;
+    if((buf.get(at + E_FLAGS) & FLAG_BOARD) != 0) {
+      unclaimedBoards.decrementAndGet();
+    }
+    unclaimedRecords.addAndGet(-buf.getInt(at + E_RECORD_COUNT));
+    return true;
+  }
+
+  /** Drop every entry not yet loaded. */
+  public void claimAll() {
+    for(int entry = 0; entry < numEntries; entry++) {
+      claim(entry);
+    }
+  }
+
+  public boolean isClaimed(int entry) {
+    return claimed.contains(entry);
+  }
+
+  /** Does entry hold a finished board. */
+  public boolean isDone(int entry) {
+    int flags = buf.get(entriesAt + entry * ENTRY_BYTES + E_FLAGS);
+    return (flags & (FLAG_BOARD | FLAG_DONE)) == (FLAG_BOARD | FLAG_DONE);
+  }
+
+  public int getNumEntries() {
+    return numEntries;
+  }
+
+  public String getChannel(int entry) {
+    return readString(buf.getInt(entriesAt + entry * ENTRY_BYTES + E_CHANNEL));
+  }
+
+  public int getUnclaimedBoards() {
+    return unclaimedBoards.get();
+  }
+
+  public int getUnclaimedRecords() {
+    return unclaimedRecords.get();
+  }
+
+  /** Rebuild entry's board, or null if the channel only has history. */
+  public TTT getBoard(int entry) {
+    int at = entriesAt + entry * ENTRY_BYTES;
+    int flags = buf.get(at + E_FLAGS);
+    if((flags & FLAG_BOARD) == 0) {
       return null;
     }
-    return command;
+    int size = buf.get(at + E_SIZE);
+    byte [] moves = new byte[buf.get(at + E_NUM_MOVES)];
+    for(int i = 0; i < moves.length; i++) {
+      moves[i] = buf.get(at + E_MOVES + i);
+    }
+    return TTT.restore(size, buf.get(at + E_WIN_LENGTH), 
+      buf.getLong(at + E_GAME_ID), 
+      readString(buf.getInt(at + E_PLAYER1)), 
+      readString(buf.getInt(at + E_PLAYER2)),
+      readString(buf.getInt(at + E_INVITEE)), moves, 
+      (flags & FLAG_DONE) != 0, readString(buf.getInt(at + E_WINNER)),
+      buf.getLong(at + E_TIME_LAST));
+  }
+
+  /** Entry's history records, oldest first. */
+  public List<TTTRecord> getRecords(int entry) {
+    int at = entriesAt + entry * ENTRY_BYTES;
+    int start = buf.getInt(at + E_RECORD_START);
+    int count = buf.getInt(at + E_RECORD_COUNT);
+    if(count == 0) {
+      return Collections.emptyList();
+    }
+    String channel = getChannel(entry).intern();
+    List<TTTRecord> list = new ArrayList<>(count);
+    for(int i = 0; i < count; i++) {
+      int r = recordsAt + (start + i) * RECORD_BYTES;
+      TTTRecord record = new TTTRecord();
+      record.channel = channel;
+      record.winnerUser = intern(readString(buf.getInt(r + R_WINNER)));
+      record.loserUser = intern(readString(buf.getInt(r + R_LOSER)));
+      record.isDraw = buf.get(r + R_DRAW) != 0;
+      record.size = buf.get(r + R_SIZE);
+      record.timeEndMS = buf.getLong(r + R_TIME_END);
+      record.moves = new byte[buf.get(r + R_NUM_MOVES)];
+      for(int j = 0; j < record.moves.length; j++) {
+        record.moves[j] = buf.get(r + R_MOVES + j);
+      }
+      list.add(record);
+    }
+    return list;
+  }
+
+  private String readString(int ref) {
+    if(ref < 0) {
+      return null;
+    }
+    int at = stringsAt + ref;
+    int length = buf.getShort(at) & 0xffff;
+    byte [] bytes = new byte[length];
+    for(int i = 0; i < length; i++) {
+      bytes[i] = buf.get(at + 2 + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static String intern(String s) {
+    return (s == null) ? null : s.intern();
+  }
+
+  private static int hash(String channel) {
+    int h = channel.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /** One channel's content while a snapshot is being written. */
+  private static class Slot {
+    String channel;
+    TTT board;
+    // copied from an unclaimed entry of the previous snapshot
+    boolean fromOld = false;
+    List<TTTRecord> records = new ArrayList<>();
   }
 
   /**
-   * executeCommandStart(Command command)
-   * 
-   * If board is done, then start a new board.
-   *
-   * A new board starts off with board not ready, since it 
-   * needs 2 users.
-   *
-   * If new board is set but not ready, then 1 user has
-   * started the board, but a second user has not yet joined.
-   * 
-   * If a not ready board is called start, then check: 
-   * if user is either invitee or there is no invitee, then
-   * user can join game, and board ready is set. If user
-   * is not invitee, or there is already 2 players, then false.
-   * 
-   * Once board is ready, then print board and first user
-   * goes first.
-   * 
-   */ 
-  private TTTResponse executeCommandStart(Command command) {
-    p("executeCommandStart\n");
-    String channel = command.getChannel();
-    String user = command.getUser();
-    String invitee = command.getInvitee();
-    StringBuilder sb = new StringBuilder();
+   * Write every channel in memory, plus those still only in memory's
+   * current snapshot, to file and fsync it. Each channel is read under
+   * its lock, so commands keep running meanwhile.
+   */
+  public static void write(File file, long gen, Memory memory) throws IOException {
+    Map<String, Slot> slots = new LinkedHashMap<>();
+    TTTSnapshot old = memory.getSnapshot();
+    if(old != null) {
+      for(int entry = 0; entry < old.getNumEntries(); entry++) {
+        if(!old.verify(entry)) {
+          // do not carry a damaged entry into the next snapshot
+          continue;
+        }
+        String channel = old.getChannel(entry);
+        ReentrantLock lock = memory.getLock(channel);
+        lock.lock();
+        try {
+          if(!old.isClaimed(entry)) {
+            Slot slot = new Slot();
+            slot.channel = channel;
+            slot.board = old.getBoard(entry);
+            slot.records = old.getRecords(entry);
+            slot.fromOld = true;
+            slots.put(channel, slot);
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+    for(String channel: memory.mapCurrent.keySet()) {
+      ReentrantLock lock = memory.getLock(channel);
+      lock.lock();
+      try {
+        TTT ttt = memory.mapCurrent.get(channel);
+        if(ttt != null) {
+          Slot slot = new Slot();
+          slot.channel = channel;
+          slot.board = TTT.restore(ttt.getSize(), ttt.getWinLength(), 
+            ttt.getGameId(), ttt.getPlayer1(), ttt.getPlayer2(), 
+            ttt.getInvitee(), ttt.getMoves(), ttt.getIsDone(), 
+            ttt.getWinner(), ttt.getTimeLastMS());
+          slots.put(channel, slot);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    for(TTTRecord record: memory.getAllHistory()) {
+      Slot slot = slots.get(record.channel);
+      if(slot == null) {
+        slot = new Slot();
+        slot.channel = record.channel;
+        slots.put(record.channel, slot);
+      }
+      // an old entry claimed since it was copied: its records are in hand
+      if(!slot.fromOld) {
+        slot.records.add(record);
+      }
+    }
+    writeSlots(file, gen, new ArrayList<>(slots.values()));
+  }
+
+  private static void writeSlots(File file, long gen, List<Slot> slots) 
+    throws IOException
+  {
+    int numSlots = 1;
+    while(numSlots < 2 * slots.size()) {
+      numSlots <<= 1;
+    }
+    int numRecords = 0;
+    int numBoards = 0;
+    for(Slot slot: slots) {
+      numRecords += slot.records.size();
+      numBoards += (slot.board == null) ? 0 : 1;
+    }
+    // strings go last, so collect them into their own section first
+    Map<String, Integer> refs = new HashMap<>();
+    ByteArrayOutputStream strings = new ByteArrayOutputStream();
+    int entriesAt = HEADER_BYTES + 4 * numSlots;
+    long recordsAt = entriesAt + (long)slots.size() * ENTRY_BYTES;
+    long stringsAt = recordsAt + (long)numRecords * RECORD_BYTES;
+
+    ByteBuffer table = ByteBuffer.allocate(4 * numSlots);
+    ByteBuffer entries = ByteBuffer.allocate(slots.size() * ENTRY_BYTES);
+    ByteBuffer records = ByteBuffer.allocate(numRecords * RECORD_BYTES);
+    int recordIndex = 0;
+    for(int entry = 0; entry < slots.size(); entry++) {
+      Slot slot = slots.get(entry);
+      int hash = hash(slot.channel);
+      int index = hash & (numSlots - 1);
+      while(table.getInt(4 * index) != 0) {
+        index = (index + 1) & (numSlots - 1);
+      }
+      table.putInt(4 * index, entry + 1);
+
+      int at = entry * ENTRY_BYTES;
+      entries.putInt(at + E_CHANNEL, ref(slot.channel, refs, strings));
+      entries.putInt(at + E_HASH, hash);
+      entries.putInt(at + E_RECORD_START, recordIndex);
+      entries.putInt(at + E_RECORD_COUNT, slot.records.size());
+      TTT ttt = slot.board;
+      if(ttt != null) {
+        entries.put(at + E_FLAGS, 
+          (byte)(FLAG_BOARD | (ttt.getIsDone() ? FLAG_DONE : 0)));
+        entries.put(at + E_SIZE, (byte)ttt.getSize());
+        entries.put(at + E_WIN_LENGTH, (byte)ttt.getWinLength());
+        byte [] moves = ttt.getMoves();
+        entries.put(at + E_NUM_MOVES, (byte)moves.length);
+        entries.putInt(at + E_PLAYER1, ref(ttt.getPlayer1(), refs, strings));
+        entries.putInt(at + E_PLAYER2, ref(ttt.getPlayer2(), refs, strings));
+        entries.putInt(at + E_INVITEE, ref(ttt.getInvitee(), refs, strings));
+        entries.putInt(at + E_WINNER, ref(ttt.getWinner(), refs, strings));
+        entries.putLong(at + E_GAME_ID, ttt.getGameId());
+        entries.putLong(at + E_TIME_LAST, ttt.getTimeLastMS());
+        for(int i = 0; i < moves.length; i++) {
+          entries.put(at + E_MOVES + i, moves[i]);
+        }
+      }
+      for(TTTRecord record: slot.records) {
+        int r = recordIndex * RECORD_BYTES;
+        records.putInt(r + R_WINNER, ref(record.winnerUser, refs, strings));
+        records.putInt(r + R_LOSER, ref(record.loserUser, refs, strings));
+        records.put(r + R_DRAW, (byte)(record.isDraw ? 1 : 0));
+        records.put(r + R_SIZE, record.size);
+        records.put(r + R_NUM_MOVES, (byte)record.moves.length);
+        records.putLong(r + R_TIME_END, record.timeEndMS);
+        for(int i = 0; i < record.moves.length; i++) {
+          records.put(r + R_MOVES + i, record.moves[i]);
+        }
+        recordIndex++;
+      }
+    }
+
+    long length = stringsAt + strings.size();
+    if(length > Integer.MAX_VALUE) {
+      throw new IOException("Snapshot too large to map: " + length);
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(H_MAGIC, MAGIC);
+    header.putInt(H_VERSION, VERSION);
+    header.putLong(H_GEN, gen);
+    header.putInt(H_ENTRIES, slots.size());
+    header.putInt(H_SLOTS, numSlots);
+    header.putInt(H_RECORDS, numRecords);
+    header.putInt(H_BOARDS, numBoards);
+    header.putLong(H_RECORDS_AT, recordsAt);
+    header.putLong(H_STRINGS_AT, stringsAt);
+    header.putLong(H_LENGTH, length);
+    // checksums are computed by the reader's code over the whole image
+    ByteBuffer all = ByteBuffer.allocate((int)length);
+    for(ByteBuffer section: new ByteBuffer [] { header, table, entries, 
+      records, ByteBuffer.wrap(strings.toByteArray()) }) 
+    {
+      all.put(section);
+    }
+    TTTSnapshot image = new TTTSnapshot(all);
+    for(int entry = 0; entry < slots.size(); entry++) {
+      all.putInt(entriesAt + entry * ENTRY_BYTES + E_CRC, 
+        image.entryCrc(entry));
+    }
+    all.putInt(H_CRC, image.headerCrc());
+    all.clear();
+    try(FileChannel channel = FileChannel.open(file.toPath(), 
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE, 
+      StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      while(all.hasRemaining()) {
+        channel.write(all);
+      }
+      channel.force(true);
+    }
+  }
+
+  /** Offset of s in the string section, adding it the first time. */
+  private static int ref(String s, Map<String, Integer> refs, 
+    ByteArrayOutputStream strings) throws IOException
+  {
+    if(s == null) {
+      return -1;
+    }
+    Integer ref = refs.get(s);
+    if(ref == null) {
+      byte [] bytes = s.getBytes(StandardCharsets.UTF_8);
+      if(bytes.length > 0xffff) {
+        throw new IOException("String too long for snapshot: " + bytes.length);
+      }
+      ref = strings.size();
+      strings.write(bytes.length >>> 8);
+      strings.write(bytes.length);
+      strings.write(bytes, 0, bytes.length);
+      refs.put(s, ref);
+    }
+    return ref;
+  }
+}
+
+/**
+* index_TTTMETRICS
+* TTTMetrics
+*
+* Request counters and latency histograms for Processor, rendered in
+* the Prometheus text format on /metrics. Counters are LongAdders and
+* each histogram is a fixed AtomicLongArray, so recording allocates
+* nothing and can stay on in production.
+*
+* Histogram buckets are log-linear like HdrHistogram at 2 bits of
+* precision: each power of two of nanoseconds is split into 4 buckets,
+* so a bucket is within 25% of any value in it. Up to 2^40 ns is
+* tracked, anything larger lands in the last bucket.
+*
+* Summary of methods:
+* public TTTMetrics()
+* public Histogram command(CMD cmd)
+* public void render(Memory memory, StringBuilder sb)
+*/
+class TTTMetrics {
+  final LongAdder requests = new LongAdder();
+  final LongAdder invalidKeys = new LongAdder();
+  final LongAdder invalidCommands = new LongAdder();
+  final LongAdder replays = new LongAdder();
+  final LongAdder shed = new LongAdder();
+  final LongAdder limitedUser = new LongAdder();
+  final LongAdder limitedChannel = new LongAdder();
+  final LongAdder delivered = new LongAdder();
+  final LongAdder deliveryFailed = new LongAdder();
+  final LongAdder deliveryDropped = new LongAdder();
+  final Histogram process = new Histogram();
+  final Histogram botMove = new Histogram();
+  final LongAdder botBusy = new LongAdder();
+  private final Histogram [] commands = new Histogram[CMD.values().length];
+
+  public TTTMetrics() {
+    for(int i = 0; i < commands.length; i++) {
+      commands[i] = new Histogram();
+    }
+  }
+
+  public Histogram command(CMD cmd) {
+    return commands[cmd.ordinal()];
+  }
+
+  public void render(Memory memory, StringBuilder sb) {
+    counter(sb, "ttt_requests_total", "Requests seen by Processor.process.", 
+      requests.sum());
+    counter(sb, "ttt_invalid_keys_total", "Requests failing validateKeys.", 
+      invalidKeys.sum());
+    counter(sb, "ttt_invalid_commands_total", 
+      "Requests failing createCommand.", invalidCommands.sum());
+    counter(sb, "ttt_replayed_total", 
+      "Repeated requests answered from TTTDedup.", replays.sum());
+    counter(sb, "ttt_shed_total", 
+      "Requests turned away with TTTConfig.maxInFlight in flight.", shed.sum());
+    counter(sb, "ttt_rate_limited_user_total", 
+      "Requests over their user's rate.", limitedUser.sum());
+    counter(sb, "ttt_rate_limited_channel_total", 
+      "Requests over their channel's rate.", limitedChannel.sum());
+    counter(sb, "ttt_delivered_total", 
+      "Replies posted to response_url.", delivered.sum());
+    counter(sb, "ttt_delivery_failed_total", 
+      "Replies to response_url refused or failed every attempt.", 
+      deliveryFailed.sum());
+    counter(sb, "ttt_delivery_dropped_total", 
+      "Replies dropped with the delivery queue full.", deliveryDropped.sum());
+    counter(sb, "ttt_bot_busy_total", 
+      "Bot moves played without an engine because all were busy.", 
+      botBusy.sum());
+    gauge(sb, "ttt_boards", "Boards held in Memory.", memory.getBoardCount());
+    gauge(sb, "ttt_history_records", "Finished games held in history.", 
+      memory.getHistorySize());
+    if(memory instanceof DatastoreMemory) {
+      // hit ratio is hits / (hits + misses) of each tier
+      DatastoreMemory store = (DatastoreMemory)memory;
+      counter(sb, "ttt_near_cache_hits_total", 
+        "Board reads answered by the instance near-cache.", store.getNearHits());
+      counter(sb, "ttt_memcache_hits_total", 
+        "Board reads answered by memcache.", store.getCacheHits());
+      counter(sb, "ttt_memcache_misses_total", 
+        "Board reads that went on to Datastore.", store.getCacheMisses());
+      counter(sb, "ttt_history_dropped_total", 
+        "Finished games the write-behind could not store.", 
+        store.getDroppedRecords());
+    }
+
+    sb.append("# HELP ttt_process_seconds Processor.process latency.\n");
+    sb.append("# TYPE ttt_process_seconds histogram\n");
+    process.render(sb, "ttt_process_seconds", "");
+    sb.append("# HELP ttt_command_seconds Command latency by verb, ");
+    sb.append("including the wait for the channel lock.\n");
+    sb.append("# TYPE ttt_command_seconds histogram\n");
+    for(CMD cmd: CMD.values()) {
+      Histogram h = commands[cmd.ordinal()];
+      if(h.count.sum() > 0) {
+        h.render(sb, "ttt_command_seconds", "cmd=\"" + cmd.getVerb() + "\"");
+      }
+    }
+    sb.append("# HELP ttt_bot_move_seconds Time a bot took to choose a move.\n");
+    sb.append("# TYPE ttt_bot_move_seconds histogram\n");
+    botMove.render(sb, "ttt_bot_move_seconds", "");
+  }
+
+  private static void counter(StringBuilder sb, String name, String help, long v) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(" counter\n");
+    sb.append(name).append(' ').append(v).append('\n');
+  }
+
+  private static void gauge(StringBuilder sb, String name, String help, long v) {
+    sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    sb.append("# TYPE ").append(name).append(" gauge\n");
+    sb.append(name).append(' ').append(v).append('\n');
+  }
+
+  static class Histogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXP = 40;
+    private static final int NUM_BUCKETS = (MAX_EXP - SUB_BITS + 2) * SUB_COUNT;
+    // le boundaries written out, powers of two from ~1us to ~17s
+    private static final int MIN_RENDER_EXP = 10;
+    private static final int MAX_RENDER_EXP = 34;
+
+    final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    final LongAdder count = new LongAdder();
+    final LongAdder sumNS = new LongAdder();
+
+    public void record(long ns) {
+      if(ns < 0) {
+        ns = 0;
+      }
+      buckets.incrementAndGet(index(ns));
+      count.increment();
+      sumNS.add(ns);
+    }
 
-    TTT ttt = memory.getBoard(channel);
-   
-    if(ttt == null || ttt.getIsDone()) {
-      // is entirely clean slate or last game is done,
-      // then this user can start a new one.
-      ttt = new TTT();
-      ttt.setPlayer1(user);
-      if(invitee != null) {
-         ttt.setInvitee(invitee);
+    /** Values below 2^e are exactly the buckets below index(2^e). */
+    static int index(long v) {
+      if(v < SUB_COUNT) {
+        return (int)v;
       }
-      memory.setBoard(channel, ttt);
-      TTTResponse response = new TTTResponse(CMD.OK);
-      String message = "New board created. Pending...";
-      response.message = message;
-      return response;
+      int exp = 63 - Long.numberOfLeadingZeros(v);
+      if(exp > MAX_EXP) {
+        return NUM_BUCKETS - 1;
+      }
+      int sub = (int)(v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+      return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
     }
-    else if(!ttt.getIsReady()) {
-      // if waiting for second user to join then set ttt to ready. 
-      // If first user is calling this again, then false.
 
-      TTTResponse response = new TTTResponse(CMD.ERR);
-      String player1 = ttt.getPlayer1();
-      String player2 = ttt.getPlayer2();
-      String playerInvitee = ttt.getInvitee();
-      if(user.equals(player1)) {
-        response.message = "Board already created. Pending...";
-        return response;
+    void render(StringBuilder sb, String name, String labels) {
+      String sep = labels.isEmpty() ? "" : ",";
+      long cumulative = 0;
+      int i = 0;
+      for(int exp = MIN_RENDER_EXP; exp <= MAX_RENDER_EXP; exp++) {
+        int end = index(1L << exp);
+        for(; i < end; i++) {
+          cumulative += buckets.get(i);
+        }
+        sb.append(name).append("_bucket{").append(labels).append(sep);
+        sb.append("le=\"").append((double)(1L << exp) / 1e9).append("\"} ");
+        sb.append(cumulative).append('\n');
       }
-      if(player2 == null && (playerInvitee == null || playerInvitee.equals(user))) {
-        ttt.setPlayer2(user);
-        response.status = CMD.OK_PUBLIC;
-        response.message = ttt.getBoardString() + "\n" + 
-          String.format("Board ready. %s starts...", player1);
-        return response;
+      for(; i < NUM_BUCKETS; i++) {
+        cumulative += buckets.get(i);
       }
-      response.message = "Cannot create new board. Board is active...";
-      return response; 
+      sb.append(name).append("_bucket{").append(labels).append(sep);
+      sb.append("le=\"+Inf\"} ").append(cumulative).append('\n');
+      String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+      sb.append(name).append("_sum").append(braces).append(' ');
+      sb.append(sumNS.sum() / 1e9).append('\n');
+      sb.append(name).append("_count").append(braces).append(' ');
+      sb.append(cumulative).append('\n');
     }
-    TTTResponse response = new TTTResponse(CMD.ERR);
-    response.message = "Board not created. Already existing board...";
-    return response;
   }
+}
 
-  /**
-   * executeCommandPut(Command command)
-   * 
-   * user puts mark on tic tac toe board.
-   * 
-   * If it is not user's turn, then reject.
-   * 
-   * If the coordinate is out of bounds or already marked, reject.
-   * 
-   * If game has not started yet or is game over, then reject.
-   *
-   * Syntax is /ttt put row col
-   * 
-   */
-  private TTTResponse executeCommandPut(Command command) {
-    p("executeCommandPut\n");
-    String channel = command.getChannel();
-    TTT ttt = memory.getBoard(channel);
-    TTTResponse response = new TTTResponse(CMD.OK_PUBLIC);
-    if(ttt == null) {
-      response.status = CMD.OK;
-      response.message = "No board active...";
-    }
-    else if(ttt.getIsDone()) {
-      response.status = CMD.OK;
-      response.message = "Game is done. Start a new one...";
-    }
-    else if(!ttt.getIsReady()) {
-      response.status = CMD.OK;
-      response.message = "Waiting for a second player...";
+/**
+* index_TTTLOG
+* TTTLog
+*
+* Shared logger for the servlet, TTT and Processor. A call below the
+* current level returns after one volatile read, and the message is
+* never formatted. Enabled messages are queued unformatted on a bounded
+* ring and a daemon thread formats and writes them in batches, so
+* request threads do no console I/O. When the ring is full, messages
+* are dropped and counted rather than blocking the caller.
+*
+* The level comes from WEB-INF/logging.properties: myapp.level if set,
+* otherwise .level. If myapp.TTTLog.file is set, output goes to that
+* file instead of stdout. setLevel changes the level at runtime.
+*
+* Without a running writer, before configure or after shutdown, each
+* message is written inline to the configured file, or stdout if none.
+* The sink is closed by the writer once it has flushed the ring, or by
+* shutdown if there is no writer, never while the writer still uses it.
+*
+* debug has fixed-arity overloads, so a disabled debug call with up to
+* two arguments allocates no varargs array.
+*
+* Summary of methods:
+* public static void configure()
+* public static void setLevel(Level level)
+* public static boolean isDebug()
+* public static boolean isLoggable(Level level)
+* public static void debug(String f)
+* public static void debug(String f, Object a)
+* public static void debug(String f, Object a, Object b)
+* public static void debug(String f, Object ...o)
+* public static void info(String f, Object ...o)
+* public static void warning(String f, Object ...o)
+* public static long getDropped()
+* public static void shutdown()
+*/
+class TTTLog {
+  private static volatile int threshold = Level.WARNING.intValue();
+  private static final ArrayBlockingQueue<Entry> ring = 
+    new ArrayBlockingQueue<>(TTTConfig.logRingSize);
+  private static final AtomicLong dropped = new AtomicLong();
+  private static final Object [] NO_ARGS = new Object[0];
+  private static volatile Sink out = null;
+  // myapp.TTTLog.file once it opened, for inline writes after shutdown
+  private static volatile String file = null;
+  // read without the lock by log
+  private static volatile Thread writer = null;
+
+  /** A writer, and whether it is a file we opened rather than stdout. */
+  private static class Sink {
+    final Writer w;
+    final boolean isFile;
+    Sink(Writer w, boolean isFile) {
+      this.w = w;
+      this.isFile = isFile;
     }
-    else {
-      String user = command.getUser();
-      Coord coord = command.getCoord();
-      if(coord == null) {
-        response.status = CMD.OK;
-        response.message = "No coordinates set for move...";
-        return response;
-      }
-      if(ttt.set(user, coord.row, coord.col)) {
-        StringBuilder sb = new StringBuilder();
-        String msg = ttt.getBoardString();
-        sb.append(msg);
 
-        if(ttt.getIsDone()) {
-          String winner = ttt.getWinner();
-          if(winner != null) {
-            msg = String.format("Game over. Winner is %s", winner);
-            sb.append(msg);
-          }
-          else {
-            msg = "Game over. Draw...";
-            sb.append(msg);
-          }
+    /** Flush, and close if it is a file. */
+    void close() {
+      try {
+        if(isFile) {
+          w.close();
         }
         else {
-          msg = String.format("Next move is for player %s",
-            ttt.getCurrentPlayer());
-          sb.append(msg);
+          w.flush();
         }
-        response.message = sb.toString();
-      }
-      else {
-        response.status = CMD.OK;
-        response.message = String.format("Cannot place move on %d %d",
-          coord.row, coord.col);
+      } catch(IOException e) {
+        // nothing left to report it to
       }
     }
-    return response;
   }
 
-  private TTTResponse executeCommandQuitResign(Command command) {
-    p("executeCommandQuitResign\n");
-    String channel = command.getChannel();
-    String user = command.getUser();
-    TTTResponse response = new TTTResponse();
-    TTT ttt = memory.getBoard(channel);
-    if(ttt == null) {
-      response.status = CMD.OK;
-      response.message = "Board is null. Cannot quit...";
+  private static class Entry {
+    final Level level;
+    final String f;
+    final Object [] o;
+    Entry(Level level, String f, Object [] o) {
+      this.level = level;
+      this.f = f;
+      this.o = o;
     }
-    else {
-      if(ttt.quit(user)) {
-        response.status = CMD.OK_PUBLIC;
-        StringBuilder sb = new StringBuilder();
-        String msg = ttt.getBoardString();
-        sb.append(msg + "\n");
-        msg = String.format("%s quit. Winner is %s\n", user, ttt.getWinner());
-        sb.append(msg);
-        response.message = sb.toString();
+  }
+
+  /** Read level and sink from logging.properties and start the writer. */
+  public static synchronized void configure() {
+    LogManager manager = LogManager.getLogManager();
+    String level = manager.getProperty("myapp.level");
+    if(level == null) {
+      level = manager.getProperty(".level");
+    }
+    if(level != null) {
+      try {
+        setLevel(Level.parse(level.trim()));
+      } catch(IllegalArgumentException e) {
+        // keep the current level
       }
-      else {
-        response.status = CMD.OK;
-        response.message = "Game is done. Cannot quit...";
+    }
+    String name = manager.getProperty("myapp.TTTLog.file");
+    Sink sink = null;
+    try {
+      if(name != null) {
+        sink = new Sink(new BufferedWriter(new FileWriter(name, true)), true);
       }
+    } catch(IOException e) {
+      sink = null;
+    }
+    file = (sink == null) ? null : name;
+    if(sink == null) {
+      sink = new Sink(new BufferedWriter(new OutputStreamWriter(System.out)), 
+        false);
+    }
+    Sink previous = out;
+    out = sink;
+    // a running writer closes the previous sink once it moves off it
+    if(writer == null && previous != null) {
+      previous.close();
+    }
+    if(writer == null) {
+      writer = new Thread(TTTLog::drain, "ttt-log");
+      writer.setDaemon(true);
+      writer.start();
     }
-    return response;
   }
 
-  private TTTResponse executeCommandStatus(Command command) {
-    p("executeCommandStatus\n");
-    String channel = command.getChannel();
-    TTT ttt = memory.getBoard(channel);
-    TTTResponse response = new TTTResponse(CMD.OK_PUBLIC);
-    if(ttt == null) {
-      response.message = "No board active...";
+  public static void setLevel(Level level) {
+    threshold = level.intValue();
+  }
+
+  public static boolean isLoggable(Level level) {
+    return level.intValue() >= threshold;
+  }
+
+  public static boolean isDebug() {
+    return Level.FINE.intValue() >= threshold;
+  }
+
+  public static void debug(String f) {
+    if(isDebug()) {
+      log(Level.FINE, f, NO_ARGS);
     }
-    else {
-      StringBuilder sb = new StringBuilder();
-      String msg = ttt.getBoardString();
-      sb.append(msg);
-      sb.append("\n");
-      if(ttt.getWinner() != null) {
-        msg = String.format("Game done. Winner is %s\n", ttt.getWinner());
-        sb.append(msg);
-      }
-      else {
-        msg = String.format("Game active. Waiting for player %s\n", 
-          ttt.getCurrentPlayer());
-        sb.append(msg);
-      }
-      response.message = sb.toString();
+  }
+
+  public static void debug(String f, Object a) {
+    if(isDebug()) {
+      log(Level.FINE, f, new Object [] {a});
     }
-    return response;
   }
- 
-  private TTTResponse executeCommandRestart(Command command) {
-    String channel = command.getChannel();
-    String user = command.getUser();
-    TTT ttt = memory.getBoard(channel);
-    TTTResponse response = new TTTResponse(CMD.OK);
 
-    if(ttt == null || ttt.getIsDone()) {
-      response.message = "Game over. No need to restart. Type start...";
+  public static void debug(String f, Object a, Object b) {
+    if(isDebug()) {
+      log(Level.FINE, f, new Object [] {a, b});
     }
-    else {
-      long timeCurrMS = System.currentTimeMillis();
-      long timeDiffMS = timeCurrMS - ttt.getTimeLastMS();
-      if(timeDiffMS < TTTConfig.timeout) {
-        long timeDiffS = (TTTConfig.timeout - timeDiffMS) / 1000;
-        response.message = String.format("Cannot restart. Wait %d seconds", 
-          timeDiffS);
-      }
-      else {
-        ttt.reset();
-        memory.clearBoard(channel);
-        response.message = "Board reset. Type start...";
-      }
-    } 
-    
-    return response;
   }
 
-  private TTTResponse executeCommandHelp(Command command) {
-    p("executeCommandHelp\n");
-    TTTResponse response = new TTTResponse(CMD.OK);
-    String msg = 
-      "```" + 
-      "HELP:\n" +
-      "    start [username to invite] // eg start or start user1\n" +
-      "    put <row> <col>            // eg put 1 2 for your move\n" +
-      "    resign|quit                // resign or quit\n" +
-      "    status                     // prints the board state\n" +
-      "    help                       // help\n" +
-      "```";
-    response.message = msg;
-    return response;
+  public static void debug(String f, Object ...o) {
+    log(Level.FINE, f, o);
   }
 
-  private TTTResponse executeCommand(Command command) {
-    String cmd = command.getCommand();
+  public static void info(String f, Object ...o) {
+    log(Level.INFO, f, o);
+  }
 
-    p("executeCommand cmd %s\n", cmd);
+  public static void warning(String f, Object ...o) {
+    log(Level.WARNING, f, o);
+  }
+
+  public static long getDropped() {
+    return dropped.get();
+  }
 
-    if     (CMD.START.equals(cmd)) {
-      return executeCommandStart(command);
+  /**
+   * Stop the writer, waiting up to a second for it to flush what is
+   * queued and close the sink. Without a writer, close the sink here.
+   */
+  public static void shutdown() {
+    Thread t;
+    synchronized(TTTLog.class) {
+      t = writer;
+      writer = null;
+    }
+    if(t == null) {
+      closeSink(out);
+      return;
     }
-    else if(CMD.PUT.equals(cmd)) {
-      return executeCommandPut(command);
+    t.interrupt();
+    try {
+      t.join(1000);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
-    else if(CMD.RESTART.equals(cmd)) {
-      return executeCommandRestart(command);
+  }
+
+  /**
+   * Write what is left on the ring, queued by threads that saw the
+   * writer still running, to sink and close it.
+   */
+  private static synchronized void closeSink(Sink sink) {
+    if(sink == null) {
+      return;
     }
-    else if(CMD.QUIT.equals(cmd)) {
-      return executeCommandQuitResign(command);
+    if(out == sink) {
+      out = null;
     }
-    else if(CMD.STATUS.equals(cmd)) {
-      return executeCommandStatus(command);
+    try {
+      for(Entry entry; (entry = ring.poll()) != null; ) {
+        sink.w.write(line(entry));
+      }
+    } catch(IOException e) {
+      dropped.incrementAndGet();
     }
-    else if(CMD.RESIGN.equals(cmd)) {
-      return executeCommandQuitResign(command);
+    sink.close();
+  }
+
+  private static void log(Level level, String f, Object [] o) {
+    if(level.intValue() < threshold) {
+      return;
     }
-    else if(CMD.HELP.equals(cmd)) {
-      return executeCommandHelp(command);
+    if(writer == null) {
+      // not configured, or shut down: write inline
+      writeInline(new Entry(level, f, o));
+      return;
     }
-    else {
-      return executeCommandHelp(command);
+    if(!ring.offer(new Entry(level, f, o))) {
+      dropped.incrementAndGet();
     }
-
-    return null;
   }
 
-  private boolean isValueNullOrZero(String s) {
-    if(s == null || s.length() == 0)
-      return true;
-    return false;
+  /** Write entry to the sink, else the configured file, else stdout. */
+  private static synchronized void writeInline(Entry entry) {
+    String line = line(entry);
+    try {
+      Sink sink = out;
+      if(sink != null) {
+        sink.w.write(line);
+        sink.w.flush();
+        return;
+      }
+      String name = file;
+      if(name != null) {
+        try(Writer w = new FileWriter(name, true)) {
+          w.write(line);
+        }
+        return;
+      }
+      System.out.print(line);
+    } catch(IOException e) {
+      dropped.incrementAndGet();
+    }
   }
 
-  private boolean validateKeys(Map<String, String> map) {
-    if( isValueNullOrZero(map.get("channel_name")) ||
-        isValueNullOrZero(map.get("channel_id")) ||
-        isValueNullOrZero(map.get("user_name")) ||
-        isValueNullOrZero(map.get("command")) ||
-        isValueNullOrZero(map.get("user_id")) ||
-        isValueNullOrZero(map.get("text")))
-    {
-      return false;
+  private static void drain() {
+    List<Entry> batch = new ArrayList<>(TTTConfig.logBatchSize);
+    Sink current = out;
+    boolean running = true;
+    // after an interrupt keep going until the ring is flushed
+    while(running || !ring.isEmpty()) {
+      if(running) {
+        try {
+          batch.add(ring.take());
+        } catch(InterruptedException e) {
+          running = false;
+        }
+      }
+      ring.drainTo(batch, TTTConfig.logBatchSize - batch.size());
+      Sink sink = out;
+      if(sink != null && sink != current) {
+        // reconfigured: nothing more goes to the old sink
+        current.close();
+        current = sink;
+      }
+      if(sink == null) {
+        // sink closed by someone else; do not lose the batch in hand
+        for(Entry entry: batch) {
+          writeInline(entry);
+        }
+        batch.clear();
+        continue;
+      }
+      Writer w = sink.w;
+      try {
+        for(Entry entry: batch) {
+          w.write(line(entry));
+        }
+        w.flush();
+      } catch(IOException e) {
+        dropped.addAndGet(batch.size());
+      }
+      batch.clear();
     }
-    return true;
+    // shut down and flushed, so the sink is done with
+    closeSink(current);
+  }
+
+  private static String format(Entry entry) {
+    String msg = (entry.o.length == 0) ? entry.f : String.format(entry.f, entry.o);
+    return entry.level.getName() + " " + msg;
+  }
+
+  /** Written in one call, so inline and batched lines never interleave. */
+  private static String line(Entry entry) {
+    return format(entry) + "\n";
   }
-  
 }
 
 /**
 * index_TTTCONFIG
 */
 class TTTConfig {
-  public static final boolean debug = true;
   public static final int timeout = 1000 * 60 * 2;
+  public static final int numLockStripes = 64;
+  public static final boolean useMailbox = false;
+  public static final int mailboxThreads = 
+    Runtime.getRuntime().availableProcessors();
+  public static final int mailboxBatch = 16;
+  public static final long mailboxWaitMS = 10000;
+  public static final int historyPerChannel = 50;
+  public static final int historyGlobal = 100000;
+  public static final long historyMaxAgeMS = 1000L * 60 * 60 * 24 * 7;
+  public static final boolean useReaper = true;
+  public static final long idleTimeoutMS = 1000L * 60 * 30;
+  // 512 slots of 4s cover idleTimeoutMS; TTTReaper widens the wheel if not
+  public static final long reaperTickMS = 4000;
+  public static final int reaperSlots = 512;
+  public static final int logRingSize = 8192;
+  public static final int logBatchSize = 256;
+  // journal and snapshots are off unless -Dttt.journal.dir is set
+  public static final String journalDir = System.getProperty("ttt.journal.dir");
+  public static final long journalFlushMS = 10;
+  public static final boolean journalSync = true;
+  public static final int journalMaxRecord = 64 * 1024;
+  public static final long snapshotIntervalMS = 1000L * 60 * 5;
+  // -Dttt.memory=datastore shares boards between instances via Datastore
+  public static final boolean useDatastore = 
+    "datastore".equals(System.getProperty("ttt.memory"));
+  public static final long nearCacheMS = 1000;
+  // memcache in front of Datastore, unless -Dttt.memcache=false
+  public static final boolean useMemcache = 
+    !"false".equals(System.getProperty("ttt.memcache"));
+  public static final int memcacheSeconds = 60 * 60;
+  public static final int commitRetries = 3;
+  public static final int writeBehindCapacity = 10000;
+  public static final int writeBehindBatch = 100;
+  public static final long writeBehindMS = 1000;
+  public static final int leaderboardSize = 10;
+  public static final int statsUsers = 100000;
+  public static final int statsChannels = 10000;
+  public static final int statsChannelUsers = 1000;
+  // bot engines are allocated up front, 16 bytes per table entry
+  public static final int botEngines = 4;
+  public static final int botTableBits = 16;
+  public static final int botFallbackBits = 6;
+  public static final long botMoveMS = 100;
+  public static final int botWinLength = 4;
+  public static final TTTBot.Level botLevel = TTTBot.Level.MEDIUM;
+  // Slack retries for up to a few minutes and gives up on a reply at 3s
+  public static final int dedupCapacity = 10000;
+  public static final long dedupTtlMS = 1000L * 60 * 10;
+  public static final long dedupWaitMS = 2500;
+  // token buckets: a sustained rate per second, and a burst on top
+  public static final int maxInFlight = 200;
+  public static final int userRatePerSec = 1;
+  public static final int userBurst = 5;
+  public static final int channelRatePerSec = 4;
+  public static final int channelBurst = 20;
+  public static final long limiterSweepMS = 1000L * 60;
+  // -Dttt.async=true answers on worker threads, see DemoServlet
+  public static final boolean useAsync = 
+    "true".equals(System.getProperty("ttt.async"));
+  public static final int asyncThreads = 
+    2 * Runtime.getRuntime().availableProcessors();
+  public static final int asyncQueue = 1000;
+  public static final long ackMS = 2000;
+  public static final String responseUrlPrefix = "https://hooks.slack.com/";
+  public static final int deliveryThreads = 2;
+  public static final int deliveryCapacity = 10000;
+  public static final int deliveryBatch = 32;
+  public static final int deliveryAttempts = 3;
+  public static final long deliveryBackoffMS = 500;
+  public static final long deliveryTimeoutMS = 5000;
+  // -Dttt.stub=true serves /stub as a local response_url
+  public static final boolean useStub = 
+    "true".equals(System.getProperty("ttt.stub"));
+  public static final int stubSize = 100;
 }
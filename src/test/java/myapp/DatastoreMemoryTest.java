@@ -0,0 +1,212 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+* DatastoreMemory against the local Datastore and memcache stubs. Two
+* Processors stand in for two instances sharing the store. A conflict
+* is forced by bumping the stored version behind an instance's back
+* while its near-cache still holds the board. The first instance counts
+* its invalidations, so a test can tell the retry happened.
+*/
+public class DatastoreMemoryTest {
+  private static final String CHANNEL = "c";
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+    new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+  private DatastoreService datastore;
+  private MemcacheService memcache;
+  private Processor first;
+  private Processor second;
+  private int invalidated = 0;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    memcache = MemcacheServiceFactory.getMemcacheService();
+    first = new Processor(false, new DatastoreMemory(datastore, memcache) {
+      @Override
+      public void invalidate(String channel) {
+        invalidated++;
+        super.invalidate(channel);
+      }
+    });
+    second = new Processor(false, new DatastoreMemory(datastore, memcache));
+  }
+
+  @After
+  public void tearDown() {
+    first.shutdown();
+    second.shutdown();
+    helper.tearDown();
+  }
+
+  @Test
+  public void staleBoardIsRetriedOnFreshRead() throws IOException {
+    run(first, "u1", "start");
+    // first still has the board without u2 in its near-cache
+    run(second, "u2", "start");
+    TTTResponse response = run(first, "u1", "put 0 0");
+    assertEquals(CMD.OK_PUBLIC, response.status);
+    assertEquals(1, invalidated);
+    assertEquals(3L, version());
+    assertEquals(1, storedBoard().getMoves().length);
+  }
+
+  @Test
+  public void rejectedCommandWritesNothing() {
+    run(first, "u1", "start");
+    run(first, "u2", "start");
+    long version = version();
+    // not u2's turn
+    TTTResponse response = run(first, "u2", "put 0 0");
+    assertTrue(response.status != CMD.OK_PUBLIC);
+    assertEquals(version, version());
+  }
+
+  @Test
+  public void resultCountedOnceAcrossRetriedCommit() {
+    playToLastMove(first);
+    bumpVersion();
+    // the winning move conflicts, is rerun on the fresh board, commits
+    TTTResponse response = run(first, "u1", "put 0 2");
+    assertEquals(CMD.OK_PUBLIC, response.status);
+    assertEquals(1, invalidated);
+    TTTUserStats winner = first.getMemory().getStats().get("u1");
+    assertNotNull(winner);
+    assertEquals(1, winner.totalPlayed);
+    assertEquals(1, winner.totalWin);
+    assertEquals(1, first.getMemory().getStats().get("u2").totalLoss);
+  }
+
+  @Test
+  public void archivedGameStoredOnceAcrossRetriedCommit() {
+    playToLastMove(first);
+    run(first, "u1", "put 0 2");
+    bumpVersion();
+    // the new game archives the finished one, and conflicts
+    run(first, "u2", "start u1");
+    assertEquals(1, invalidated);
+    assertEquals(1, first.getMemory().getHistory(CHANNEL).size());
+    first.shutdown();
+    assertEquals(1, datastore.prepare(new Query(DatastoreMemory.RECORD_KIND))
+      .asList(FetchOptions.Builder.withDefaults()).size());
+  }
+
+  @Test
+  public void newInstanceRestoresStoredRecords() {
+    playToLastMove(first);
+    run(first, "u1", "put 0 2");
+    run(first, "u2", "start u1");
+    first.shutdown();
+    Memory restored = new DatastoreMemory(datastore, memcache);
+    try {
+      assertEquals(1, restored.getStats().get("u1").totalWin);
+      assertEquals(1, restored.getHistory(CHANNEL).size());
+    } finally {
+      restored.shutdown();
+    }
+  }
+
+  @Test
+  public void touchedCacheEntryIsDeletedOnCommit() throws IOException {
+    run(second, "u1", "start");
+    run(second, "u2", "start");
+    // first reads the board through memcache
+    run(first, "u1", "status");
+    String cacheKey = DatastoreMemory.BOARD_KIND + ":" + CHANNEL;
+    // and someone else writes the entry before first commits
+    memcache.put(cacheKey, new byte [8]);
+    run(first, "u1", "put 0 0");
+    assertNull(memcache.get(cacheKey));
+    assertEquals(1, storedBoard().getMoves().length);
+  }
+
+  /** Start a game and play up to u1's winning move at 0 2. */
+  private void playToLastMove(Processor processor) {
+    String [][] script = {
+      {"u1", "start"}, {"u2", "start"}, {"u1", "put 0 0"},
+      {"u2", "put 1 0"}, {"u1", "put 0 1"}, {"u2", "put 1 1"}
+    };
+    for(String [] step: script) {
+      TTTResponse response = run(processor, step[0], step[1]);
+      assertTrue(step[1], response.status != CMD.ERR);
+    }
+  }
+
+  private TTT storedBoard() throws IOException {
+    Blob board = (Blob)stored().getProperty("board");
+    return TTTCodec.readBoard(ByteBuffer.wrap(board.getBytes()));
+  }
+
+  private long version() {
+    return (Long)stored().getProperty("version");
+  }
+
+  /** Commit the stored board again under a new version. */
+  private void bumpVersion() {
+    Entity entity = stored();
+    entity.setUnindexedProperty("version", (Long)entity.getProperty("version") + 1);
+    datastore.put(entity);
+  }
+
+  private Entity stored() {
+    try {
+      return datastore.get(KeyFactory.createKey(DatastoreMemory.BOARD_KIND, CHANNEL));
+    } catch(EntityNotFoundException e) {
+      throw new AssertionError("no board stored for " + CHANNEL);
+    }
+  }
+
+  private static TTTResponse run(Processor processor, String user, String text) {
+    Map<String, String> map = new HashMap<>();
+    map.put("command", "/ttt");
+    map.put("user_name", user);
+    map.put("user_id", user + "_id");
+    map.put("channel_name", CHANNEL);
+    map.put("channel_id", CHANNEL + "_id");
+    map.put("text", text);
+    return processor.process(map);
+  }
+}
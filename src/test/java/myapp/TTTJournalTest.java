@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+* TTTJournal recovery: every committed board and clear is replayed into
+* a fresh Memory, with and without a snapshot in between, and a torn
+* record at the end of the journal loses only itself.
+*/
+public class TTTJournalTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File dir;
+  private Memory memory;
+  private TTTJournal journal;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = folder.newFolder("journal");
+    memory = new Memory();
+    journal = open(memory);
+  }
+
+  @After
+  public void tearDown() {
+    journal.close();
+  }
+
+  @Test
+  public void boardsAndHistoryAreReplayed() throws IOException {
+    win("a", "alice", "bob");
+    // a new game archives the finished one
+    TTT live = game("alice", "bob");
+    live.set("alice", 1, 1);
+    put("a", live);
+    win("b", "carol", "dave");
+    journal.close();
+
+    Memory recovered = recover();
+    TTT board = recovered.getBoard("a");
+    assertNotNull(board);
+    assertEquals(live.getGameId(), board.getGameId());
+    assertArrayEquals(live.getMoves(), board.getMoves());
+    assertFalse(board.getIsDone());
+    assertEquals(1, recovered.getHistory("a").size());
+    assertTrue(recovered.getBoard("b").getIsDone());
+    assertEquals(1, recovered.getStats().get("alice").totalWin);
+  }
+
+  @Test
+  public void changesAfterSnapshotAreReplayed() throws IOException {
+    win("a", "alice", "bob");
+    journal.snapshot(memory);
+    win("b", "carol", "dave");
+    // the reaper archives and clears a's finished board
+    memory.expireIfIdle("a", Long.MAX_VALUE, 0);
+    assertEquals(1, memory.getHistory("a").size());
+    journal.close();
+
+    Memory recovered = recover();
+    assertEquals(null, recovered.getBoard("a"));
+    assertEquals(1, recovered.getHistory("a").size());
+    assertTrue(recovered.getBoard("b").getIsDone());
+    assertEquals(1, recovered.getStats().get("alice").totalWin);
+    assertEquals(1, recovered.getStats().get("carol").totalWin);
+  }
+
+  @Test
+  public void tornTailLosesOnlyItself() throws IOException {
+    win("a", "alice", "bob");
+    journal.close();
+    File [] logs = dir.listFiles((d, name) -> name.startsWith("journal-"));
+    assertEquals(1, logs.length);
+    try(FileOutputStream out = new FileOutputStream(logs[0], true)) {
+      // a length and checksum with half a body after them
+      out.write(new byte [] {0, 0, 0, 40, 1, 2, 3, 4, 5, 6});
+    }
+
+    Memory recovered = recover();
+    assertTrue(recovered.getBoard("a").getIsDone());
+    assertEquals(1, recovered.getStats().get("alice").totalWin);
+  }
+
+  private TTTJournal open(Memory target) throws IOException {
+    TTTJournal opened = new TTTJournal(dir, 1, true);
+    opened.recover(target);
+    opened.start(target, Long.MAX_VALUE / 2);
+    target.setJournal(opened);
+    return opened;
+  }
+
+  private Memory recover() throws IOException {
+    Memory recovered = new Memory();
+    journal = open(recovered);
+    return recovered;
+  }
+
+  private static TTT game(String player1, String player2) {
+    TTT ttt = new TTT();
+    ttt.setPlayer1(player1);
+    ttt.setPlayer2(player2);
+    ttt.setIsReady();
+    return ttt;
+  }
+
+  /** Play a game in channel that player1 wins on the top row. */
+  private void win(String channel, String player1, String player2) {
+    TTT ttt = game(player1, player2);
+    ttt.set(player1, 0, 0);
+    ttt.set(player2, 1, 0);
+    ttt.set(player1, 0, 1);
+    ttt.set(player2, 1, 1);
+    ttt.set(player1, 0, 2);
+    put(channel, ttt);
+    memory.recordResult(channel, ttt);
+  }
+
+  private void put(String channel, TTT ttt) {
+    long seq;
+    memory.getLock(channel).lock();
+    try {
+      memory.setBoard(channel, ttt);
+      seq = memory.commit(channel);
+    } finally {
+      memory.getLock(channel).unlock();
+    }
+    memory.awaitDurable(seq);
+  }
+}
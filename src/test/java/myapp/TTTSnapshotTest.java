@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package myapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+* TTTSnapshot checksums: a damaged header or table fails open, and a
+* damaged entry loses its channel only, both when it is loaded and when
+* stats are rebuilt. The snapshot holds two finished games, in channels
+* a and b, whose player names appear nowhere else in the file.
+*/
+public class TTTSnapshotTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    Memory memory = new Memory();
+    win(memory, "a", "alice", "bob");
+    win(memory, "b", "carol", "dave");
+    file = folder.newFile("snapshot.dat");
+    TTTSnapshot.write(file, 1, memory);
+  }
+
+  @Test
+  public void intactSnapshotServesEveryChannel() throws IOException {
+    Memory memory = load();
+    assertTrue(memory.getBoard("a").getIsDone());
+    assertTrue(memory.getBoard("b").getIsDone());
+    assertEquals(1, memory.getStats().get("carol").totalWin);
+  }
+
+  @Test(expected = IOException.class)
+  public void damagedTableFailsOpen() throws IOException {
+    flip(TTTSnapshot.HEADER_BYTES);
+    TTTSnapshot.open(file);
+  }
+
+  @Test
+  public void damagedEntryLosesOnlyItsChannel() throws IOException {
+    flip(indexOf("carol"));
+    TTTSnapshot snapshot = TTTSnapshot.open(file);
+    assertFalse(snapshot.verify(snapshot.find("b")));
+    assertTrue(snapshot.verify(snapshot.find("a")));
+
+    Memory memory = load();
+    assertNull(memory.getStats().get("carol"));
+    assertEquals(1, memory.getStats().get("alice").totalWin);
+    assertNull(memory.getBoard("b"));
+    assertTrue(memory.getBoard("a").getIsDone());
+  }
+
+  /** Memory serving the snapshot, with stats rebuilt as after recovery. */
+  private Memory load() throws IOException {
+    Memory memory = new Memory();
+    memory.setSnapshot(TTTSnapshot.open(file));
+    memory.rebuildStats();
+    return memory;
+  }
+
+  private int indexOf(String name) throws IOException {
+    String bytes = new String(Files.readAllBytes(file.toPath()), 
+      StandardCharsets.ISO_8859_1);
+    int at = bytes.indexOf(name);
+    assertTrue(name, at >= 0);
+    return at;
+  }
+
+  private void flip(long at) throws IOException {
+    try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(at);
+      int b = raf.read();
+      raf.seek(at);
+      raf.write(b ^ 0x01);
+    }
+  }
+
+  private static void win(Memory memory, String channel, String player1, 
+    String player2) 
+  {
+    TTT ttt = new TTT();
+    ttt.setPlayer1(player1);
+    ttt.setPlayer2(player2);
+    ttt.setIsReady();
+    ttt.set(player1, 0, 0);
+    ttt.set(player2, 1, 0);
+    ttt.set(player1, 0, 1);
+    ttt.set(player2, 1, 1);
+    ttt.set(player1, 0, 2);
+    memory.setBoard(channel, ttt);
+  }
+}